@@ -0,0 +1,344 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import android.graphics.Rect;
+import android.hardware.Camera.Face;
+
+
+/**
+ * Follows a colored marker (a vest, a ball) instead of a face. Each NV21
+ * preview frame is thresholded in YUV space against the marker color on
+ * a downsampled grid, connected cells are labeled in a single pass with
+ * union-find, and the largest blob is reported as a Camera.Face so the
+ * existing steering in draw() works unchanged.
+ *
+ * All buffers are allocated in configure(), process() does not allocate.
+ * Runs on the camera thread. The work can be split into stripes with a
+ * FrameProcessor: each stripe labels its rows with its own label range,
+ * and merge() joins the blobs that cross stripe borders.
+ */
+public class BlobTracker implements FrameProcessor.StripeTask {
+
+	// the frame is sampled down to about this many cells across
+	private static final int GRID_WIDTH = 160;
+
+	// minimum blob size in cells
+	private static final int MIN_BLOB_CELLS = 12;
+
+	// marker color, default is a safety-vest orange
+	private volatile int mTargetU = 80;
+	private volatile int mTargetV = 190;
+	private volatile int mTolerance = 28;
+	private volatile boolean mLearnColor;
+
+	// too dark to trust the chroma
+	private static final int MIN_LUMA = 40;
+
+	private int mWidth;
+	private int mHeight;
+	private int mStep;
+	private int mGridWidth;
+	private int mGridHeight;
+
+	// labeling buffers, label 0 is background
+	private int[] mLabels;
+	private int[] mParent;
+	private int[] mCount;
+	private int[] mMinX, mMinY, mMaxX, mMaxY;
+
+	// label range of each stripe, first label and next free label
+	private final int[] mFirstLabel = new int[FrameProcessor.MAX_STRIPES];
+	private final int[] mNextLabel = new int[FrameProcessor.MAX_STRIPES];
+	private final int[] mFirstRow = new int[FrameProcessor.MAX_STRIPES];
+	private int mStripes;
+
+	// results rotate through three arrays: the UI thread may still read the
+	// one published for the last tick while the next frame is processed
+	// and published, only the frame after that reuses its array
+	private final Face[][] mResults = { { new Face() }, { new Face() }, { new Face() } };
+	private int mResult;
+	private Face[] mFaces;
+	private static final Face[] NO_FACES = {};
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public BlobTracker() {
+		for (Face[] result : mResults) {
+			result[0].rect = new Rect();
+			result[0].score = 100;
+		}
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public void setTargetColor(int u, int v, int tolerance) {
+		mTargetU = u;
+		mTargetV = v;
+		mTolerance = tolerance;
+	}
+
+	/**
+	 * Take the marker color from the center of the next frame.
+	 */
+	public void learnColor() {
+		mLearnColor = true;
+	}
+
+	public int getTargetU() {
+		return mTargetU;
+	}
+
+	public int getTargetV() {
+		return mTargetV;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Set the preview size, must be called before the first frame and
+	 * whenever the preview size changes.
+	 */
+	public void configure(int width, int height) {
+		mWidth = width;
+		mHeight = height;
+		mStep = Math.max(2, (width / GRID_WIDTH) & ~1);
+		mGridWidth = width / mStep;
+		mGridHeight = height / mStep;
+
+		int cells = mGridWidth * mGridHeight;
+		// with 4-connectivity at most every other cell starts a new label,
+		// plus one spare per stripe for rounding
+		int maxLabels = cells / 2 + FrameProcessor.MAX_STRIPES + 2;
+		mLabels = new int[cells];
+		mParent = new int[maxLabels];
+		mCount = new int[maxLabels];
+		mMinX = new int[maxLabels];
+		mMinY = new int[maxLabels];
+		mMaxX = new int[maxLabels];
+		mMaxY = new int[maxLabels];
+	}
+
+	/**
+	 * Find the largest blob of marker color in an NV21 frame, on the
+	 * calling thread.
+	 *
+	 * @return the blob as a one element face array, or an empty array
+	 */
+	public Face[] process(byte[] frame) {
+		begin(frame, 1);
+		processStripe(frame, 0, 0, mGridHeight);
+		merge(1);
+		return mFaces;
+	}
+
+	/**
+	 * @return result of the last frame, as returned by process()
+	 */
+	public Face[] getResult() {
+		return mFaces;
+	}
+
+	@Override
+	public int getRows() {
+		return mGridHeight;
+	}
+
+	@Override
+	public void begin(byte[] frame, int stripes) {
+		if (mLearnColor) {
+			mLearnColor = false;
+			sampleCenter(frame);
+		}
+
+		// split the label space so stripes never share a label
+		mStripes = stripes;
+		for (int i = 0; i < stripes; i++) {
+			int firstRow = mGridHeight * i / stripes;
+			mFirstRow[i] = firstRow;
+			mFirstLabel[i] = 1 + i + firstRow * mGridWidth / 2;
+		}
+	}
+
+	@Override
+	public void processStripe(byte[] frame, int stripe, int rowStart, int rowEnd) {
+		final int width = mWidth;
+		final int frameSize = width * mHeight;
+		final int step = mStep;
+		final int gridWidth = mGridWidth;
+		final int targetU = mTargetU, targetV = mTargetV, tolerance = mTolerance;
+		final int[] labels = mLabels;
+		final int[] parent = mParent;
+		final int lastLabel = (stripe + 1 < mStripes) ? mFirstLabel[stripe + 1] : parent.length;
+		int next = mFirstLabel[stripe];
+
+		for (int gy = rowStart; gy < rowEnd; gy++) {
+			int y = gy * step;
+			int lumaRow = y * width;
+			int chromaRow = frameSize + (y >> 1) * width;
+			int cell = gy * gridWidth;
+			for (int gx = 0; gx < gridWidth; gx++, cell++) {
+				int x = gx * step;
+				// NV21: full Y plane, then interleaved V/U at half resolution
+				int luma = frame[lumaRow + x] & 0xff;
+				int v = frame[chromaRow + x] & 0xff;
+				int u = frame[chromaRow + x + 1] & 0xff;
+				if (luma < MIN_LUMA || Math.abs(u - targetU) > tolerance || Math.abs(v - targetV) > tolerance) {
+					labels[cell] = 0;
+					continue;
+				}
+
+				// never look up into another stripe, merge() joins those
+				int left = (gx > 0) ? labels[cell - 1] : 0;
+				int up = (gy > rowStart) ? labels[cell - gridWidth] : 0;
+				int label;
+				if (left == 0 && up == 0) {
+					if (next == lastLabel) {
+						labels[cell] = 0;
+						continue;
+					}
+					label = next++;
+					parent[label] = label;
+					mCount[label] = 0;
+					mMinX[label] = gx; mMaxX[label] = gx;
+					mMinY[label] = gy; mMaxY[label] = gy;
+				} else if (left == 0 || up == 0 || left == up) {
+					label = (left != 0) ? left : up;
+				} else {
+					label = union(left, up);
+				}
+				labels[cell] = label;
+				accumulate(label, gx, gy);
+			}
+		}
+		mNextLabel[stripe] = next;
+	}
+
+	@Override
+	public void merge(int stripes) {
+		final int[] labels = mLabels;
+		final int[] parent = mParent;
+		final int gridWidth = mGridWidth;
+
+		// join blobs across the stripe borders
+		for (int i = 1; i < stripes; i++) {
+			int cell = mFirstRow[i] * gridWidth;
+			for (int gx = 0; gx < gridWidth; gx++, cell++) {
+				int label = labels[cell];
+				int up = labels[cell - gridWidth];
+				if (label != 0 && up != 0) union(label, up);
+			}
+		}
+
+		// fold the per-label statistics into the root of each blob, roots
+		// are always the lowest label of a blob so go from high to low
+		int labelCount = 0;
+		for (int i = stripes - 1; i >= 0; i--) {
+			labelCount += mNextLabel[i] - mFirstLabel[i];
+			for (int label = mNextLabel[i] - 1; label >= mFirstLabel[i]; label--) {
+				int root = find(label);
+				if (root != label) {
+					mCount[root] += mCount[label];
+					if (mMinX[label] < mMinX[root]) mMinX[root] = mMinX[label];
+					if (mMaxX[label] > mMaxX[root]) mMaxX[root] = mMaxX[label];
+					if (mMinY[label] < mMinY[root]) mMinY[root] = mMinY[label];
+					if (mMaxY[label] > mMaxY[root]) mMaxY[root] = mMaxY[label];
+				}
+			}
+		}
+
+		int best = 0;
+		for (int i = 0; i < stripes; i++) {
+			for (int label = mFirstLabel[i]; label < mNextLabel[i]; label++) {
+				if (parent[label] == label && (best == 0 || mCount[label] > mCount[best])) best = label;
+			}
+		}
+		Trace.event(Trace.EV_BLOB, labelCount, (best == 0) ? 0 : mCount[best]);
+
+		if (best == 0 || mCount[best] < MIN_BLOB_CELLS) {
+			mFaces = NO_FACES;
+			return;
+		}
+
+		mResult = (mResult + 1) % mResults.length;
+		Face[] result = mResults[mResult];
+		result[0].rect.set(toCamera(mMinX[best], gridWidth), toCamera(mMinY[best], mGridHeight),
+				toCamera(mMaxX[best] + 1, gridWidth), toCamera(mMaxY[best] + 1, mGridHeight));
+		mFaces = result;
+	}
+
+	private void accumulate(int label, int gx, int gy) {
+		mCount[label]++;
+		if (gx < mMinX[label]) mMinX[label] = gx;
+		if (gx > mMaxX[label]) mMaxX[label] = gx;
+		if (gy < mMinY[label]) mMinY[label] = gy;
+		if (gy > mMaxY[label]) mMaxY[label] = gy;
+	}
+
+	private int find(int label) {
+		int root = label;
+		while (mParent[root] != root) root = mParent[root];
+		// path compression
+		while (mParent[label] != root) {
+			int up = mParent[label];
+			mParent[label] = root;
+			label = up;
+		}
+		return root;
+	}
+
+	// the lower label becomes the root
+	private int union(int a, int b) {
+		int rootA = find(a);
+		int rootB = find(b);
+		if (rootA < rootB) {
+			mParent[rootB] = rootA;
+			return rootA;
+		}
+		mParent[rootA] = rootB;
+		return rootB;
+	}
+
+	// average chroma of the 8x8 pixels at the frame center
+	private void sampleCenter(byte[] frame) {
+		int frameSize = mWidth * mHeight;
+		int sumU = 0, sumV = 0;
+		for (int y = mHeight / 2 - 4; y < mHeight / 2 + 4; y += 2) {
+			int row = frameSize + (y >> 1) * mWidth;
+			for (int x = (mWidth / 2 - 4) & ~1; x < mWidth / 2 + 4; x += 2) {
+				sumV += frame[row + x] & 0xff;
+				sumU += frame[row + x + 1] & 0xff;
+			}
+		}
+		mTargetU = sumU / 16;
+		mTargetV = sumV / 16;
+	}
+
+	// grid cell to -1000..1000 camera coordinates
+	private static int toCamera(int cell, int cells) {
+		return cell * 2000 / cells - 1000;
+	}
+}
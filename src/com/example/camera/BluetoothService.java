@@ -36,9 +36,33 @@ import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 
+/**
+ * Connection to the robot over RFCOMM.
+ *
+ * The connection lifecycle is a lock-free state machine, see LinkState. A
+ * thread that loses a race (e.g. a connect thread finishing after
+ * reset()) backs off and cleans up after itself. write() only does one
+ * volatile read, it never takes a lock.
+ *
+ * writeReliable() goes through a ReliableChannel when acknowledged
+ * delivery is switched on, and is a plain write() otherwise.
+ *
+ * A dead robot is noticed by a heartbeat rather than by a failing read,
+ * which can take many seconds: every interval both sides send
+ * "ping,n" and answer "pong,n". Once the robot has answered the first
+ * ping, a link that stays silent for more than interval * misses is
+ * declared lost, so it is detected within interval * (misses + 1).
+ * Pings are sent from their own thread, a write stuck on the dead link
+ * cannot delay the silence check. Firmware that leaves the first
+ * MAX_UNANSWERED_PINGS pings unanswered does not know them; it is not
+ * pinged any further and its link is left to the read to fail.
+ *
+ * The ping thread also drives the clock synchronization, see ClockSync.
+ */
 public class BluetoothService {
 	// Debugging
 	private static final String TAG = "BluetoothChatService";
@@ -49,15 +73,26 @@ public class BluetoothService {
 	// Member fields
 	private final BluetoothAdapter mAdapter;
 	private final Handler mHandler;
-	private ConnectThread mConnectThread;
-	private CommunicationThread mCommunicationThread;
-	private int mState;
+	private final DeviceIndex mDeviceIndex;
+	private final LinkState<ConnectThread, CommunicationThread> mLink = new LinkState<ConnectThread, CommunicationThread>();
+	private final ReliableChannel mReliable;
+	private volatile boolean mReliableEnabled;
+
+	// heartbeat, see HeartbeatThread
+	private static final String PING = "ping,";
+	private static final String PONG = "pong,";
+	private static final int MAX_UNANSWERED_PINGS = 10;
+	private volatile long mHeartbeatIntervalMs = 500;
+	private volatile int mHeartbeatMisses = 3;
+	private final LatencyHistogram mDetectTimes = new LatencyHistogram();
+	private final ClockSync mClockSync = new ClockSync();
 
 	// Constants that indicate the current connection state
-	public static final int STATE_NONE = 0;       // doing nothing
-	public static final int STATE_LISTEN = 1;     // listening for incoming connections - unused
-	public static final int STATE_CONNECTING = 2; // initiating an outgoing connection
-	public static final int STATE_CONNECTED = 3;  // connected to a remote device
+	public static final int STATE_NONE = LinkState.NONE;             // doing nothing
+	public static final int STATE_LISTEN = 1;                        // listening for incoming connections - unused
+	public static final int STATE_CONNECTING = LinkState.CONNECTING; // initiating an outgoing connection
+	public static final int STATE_CONNECTED = LinkState.CONNECTED;   // connected to a remote device
+	public static final int STATE_CLOSING = LinkState.CLOSING;       // reset() is tearing down the threads
 
         // ===========================================================
         // Constructors
@@ -65,8 +100,9 @@ public class BluetoothService {
 
 	public BluetoothService(Context context, Handler handler) {
 		mAdapter = BluetoothAdapter.getDefaultAdapter();
-		mState = STATE_NONE;
 		mHandler = handler;
+		mDeviceIndex = DeviceIndex.getInstance(context);
+		mReliable = new ReliableChannel(this, handler);
 	}
 
 	
@@ -79,14 +115,49 @@ public class BluetoothService {
         // Getter & Setter
         // ===========================================================
 	
-	private synchronized void setState(int state) {
-		mState = state;
+	private void notifyState(int state) {
 		mHandler.obtainMessage(CameraActivity.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
 	}
 
 
-	public synchronized int getState() {
-		return mState;
+	public int getState() {
+		return mLink.get();
+	}
+
+	/**
+	 * Switch acknowledged delivery of writeReliable() on or off, the robot
+	 * firmware has to answer with "ACK,seq".
+	 */
+	public void setReliable(boolean enabled) {
+		mReliableEnabled = enabled;
+		if (enabled) mReliable.start();
+		else mReliable.stop();
+	}
+
+	public boolean isReliable() {
+		return mReliableEnabled;
+	}
+
+	public String getReliableReport() {
+		return mReliable.getReport();
+	}
+
+	/**
+	 * @param intervalMs time between pings
+	 * @param misses silent intervals before the link is declared dead
+	 */
+	public void setHeartbeat(long intervalMs, int misses) {
+		mHeartbeatIntervalMs = Math.max(50, intervalMs);
+		mHeartbeatMisses = Math.max(1, misses);
+	}
+
+	public String getHeartbeatReport() {
+		return "heartbeat: " + mHeartbeatIntervalMs + "ms x" + mHeartbeatMisses + ", time to detect "
+			+ mDetectTimes;
+	}
+
+	public String getClockReport() {
+		return mClockSync.getReport();
 	}
 	
         // ===========================================================
@@ -95,37 +166,53 @@ public class BluetoothService {
 
 
 
-	public synchronized void reset() {
-		// cancel any running threads
-		if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
-		if (mCommunicationThread != null) {mCommunicationThread.cancel(); mCommunicationThread = null;}
+	public void reset() {
+		// only the thread that moves the state to CLOSING tears down and
+		// cancels any running threads
+		if (!mLink.reset()) return;
+		notifyState(STATE_NONE);
+	}
+
 
-		setState(STATE_NONE);
+	/**
+	 * Tear down the connection and stop the reliability timer, the service
+	 * can not be used afterwards.
+	 */
+	public void quit() {
+		mReliable.stop();
+		reset();
 	}
 
 
-	public synchronized void startConnectThread(BluetoothDevice device) {
+	public void startConnectThread(BluetoothDevice device) {
 
 		Log.d(TAG,"connect() called, starting ConnectThread");
-		// cancel any running thread
-		reset();
+		// cancel any running thread, waiting out a concurrent reset()
+		ConnectThread connectThread = new ConnectThread(device);
+		mLink.connect(connectThread);
 
 		// start connect thread
-		mConnectThread = new ConnectThread(device);
-		mConnectThread.start();
+		connectThread.start();
 		
-		setState(STATE_CONNECTING);
+		notifyState(STATE_CONNECTING);
 	}
 
 
-	public synchronized void onConnected(BluetoothSocket socket, BluetoothDevice device) {
+	/**
+	 * @return false if the connection was no longer wanted and is closed
+	 */
+	private boolean onConnected(ConnectThread attempt, BluetoothSocket socket, BluetoothDevice device) {
 
-		// cancel any running thread
-		reset();
+		CommunicationThread commThread = new CommunicationThread(socket);
+		if (!mLink.connected(attempt, commThread)) {
+			// reset() or a newer connect came in while we were connecting
+			Log.d(TAG, "connection no longer wanted, closing");
+			return false;
+		}
 
-		// start communication thread
-		mCommunicationThread = new CommunicationThread(socket);
-		mCommunicationThread.start();
+		// start communication thread, the robot may have restarted its clock
+		mClockSync.reset();
+		commThread.start();
 
 		// Send the name of the connected device back to the UI Activity
 		Message msg = mHandler.obtainMessage(CameraActivity.MESSAGE_DEVICE_NAME);
@@ -134,21 +221,29 @@ public class BluetoothService {
 		msg.setData(bundle);
 		mHandler.sendMessage(msg);
 
-		setState(STATE_CONNECTED);
+		notifyState(STATE_CONNECTED);
+
+		// resend what the robot did not confirm before the link went down
+		mReliable.onConnected();
+		return true;
 	}
 
 
 
 	public void write(byte[] out) {
-		// create temporary object
-		CommunicationThread commThread;
-		// Synchronize a copy of the CommunicationThread
-		synchronized (this) {
-			if (mState != STATE_CONNECTED) return;
-			commThread = mCommunicationThread;
-		}
-		// perform the write unsynchronized
-		commThread.write(out);
+		// lock-free fast path, there only is a connection while connected
+		CommunicationThread commThread = mLink.getConnection();
+		if (commThread != null) commThread.write(out);
+	}
+
+
+	/**
+	 * Send a command that must arrive, retransmitted until the robot
+	 * acknowledges it if reliable delivery is on.
+	 */
+	public void writeReliable(byte[] out) {
+		if (mReliableEnabled) mReliable.send(out);
+		else write(out);
 	}
 
 
@@ -160,8 +255,8 @@ public class BluetoothService {
 		msg.setData(bundle);
 		mHandler.sendMessage(msg);
 
-		// Start the service over to restart listening mode
-		BluetoothService.this.reset();
+		// LinkState.failed() is already back to NONE
+		notifyState(STATE_NONE);
 	}
 
 
@@ -173,8 +268,8 @@ public class BluetoothService {
 		msg.setData(bundle);
 		mHandler.sendMessage(msg);
 
-		// reset service
-		BluetoothService.this.reset();
+		// LinkState.lost() is already back to NONE
+		notifyState(STATE_NONE);
 	}
 
 
@@ -185,7 +280,7 @@ public class BluetoothService {
 	//-----------------------------
 	// thread to set up connection
 	//-----------------------------
-	private class ConnectThread extends Thread {
+	private class ConnectThread extends Thread implements LinkState.Endpoint {
 		private final BluetoothSocket mmSocket;
 		private final BluetoothDevice mmDevice;
 
@@ -217,6 +312,7 @@ public class BluetoothService {
 			mAdapter.cancelDiscovery();
 
 			// connect the bluetooth socket
+			long start = SystemClock.elapsedRealtime();
 			try {
 				mmSocket.connect();
 			} catch (IOException e) {
@@ -226,17 +322,20 @@ public class BluetoothService {
 				} catch (IOException e2) {
 					Log.e(TAG, "unable to close() socket during connection failure", e2);
 				}
-				connectionFailed();
+				// a cancelled connect is not a failure worth reporting
+				if (mLink.failed(this)) {
+					mDeviceIndex.recordFailed(mmDevice.getAddress(), mmDevice.getName());
+					connectionFailed();
+				}
 				return;
 			}
+			long latency = SystemClock.elapsedRealtime() - start;
 
-			// reset the this thread because we're done
-			synchronized (BluetoothService.this) {
-				mConnectThread = null;
+			// start the communication thread - unless reset() already
+			// dropped us, an abandoned connect does not count as a success
+			if (onConnected(this, mmSocket, mmDevice)) {
+				mDeviceIndex.recordConnected(mmDevice.getAddress(), mmDevice.getName(), latency);
 			}
-
-			// start the communication thread
-			onConnected(mmSocket, mmDevice);
 		}
 
 		
@@ -252,11 +351,15 @@ public class BluetoothService {
 	//---------------------------------------------------------
 	// Thread to handle the communication with a remote device
 	//---------------------------------------------------------
-	private class CommunicationThread extends Thread {
+	private class CommunicationThread extends Thread implements LinkState.Endpoint {
 		private final BluetoothSocket mmSocket;
 		private final InputStream mmInStream;
 		private final OutputStream mmOutStream;
 		private final BufferedReader in;
+		private final HeartbeatThread mmHeartbeat = new HeartbeatThread(this);
+		private final PingThread mmPinger = new PingThread(this);
+		private volatile long mmLastHeard;
+		private volatile boolean mmArmed;
 
 		//
 		// constructor - get streams
@@ -286,26 +389,66 @@ public class BluetoothService {
 		public void run() {
 			Log.i(TAG, "BEGIN mConnectedThread");
 			String line;
+			mmLastHeard = SystemClock.elapsedRealtime();
+			mmHeartbeat.start();
+			mmPinger.start();
 			
 			try {
 				while ((line = in.readLine()) != null) {
+					// anything from the robot proves the link is alive
+					long now = SystemClock.elapsedRealtime();
+					mmLastHeard = now;
+					long robotTime = ClockSync.getTimestamp(line);
+					if (robotTime >= 0) {
+						line = ClockSync.stripTimestamp(line);
+						mClockSync.onInbound(robotTime, now);
+					}
+					if (line.startsWith(ClockSync.TIME)) {
+						mClockSync.onTime(line, now);
+						continue;
+					}
+					if (line.startsWith(PONG)) {
+						mmArmed = true;
+						continue;
+					}
+					if (line.startsWith(PING)) {
+						write((PONG + line.substring(PING.length()) + "\n").getBytes());
+						continue;
+					}
+					// without reliable delivery an ACK line is left to the UI
+					// like any other line
+					if (mReliableEnabled && line.startsWith(ReliableChannel.ACK)) {
+						long sent = mReliable.onAck(line);
+						if (sent >= 0 && robotTime >= 0) mClockSync.onUplink(sent, robotTime);
+						continue;
+					}
 					// Send the obtained bytes to the UI Activity
 					mHandler.obtainMessage(CameraActivity.MESSAGE_READ, line.length(), -1, line.getBytes()).sendToTarget();
 				}
+				Log.e(TAG, "robot closed the connection");
 			} catch (IOException e) {
 				Log.e(TAG,"ERROR on socket read: "+e.toString());
-				connectionLost();
 			}
-			
+			lost();
+		}
+
+		// only the current connection may tear the service down, and only
+		// once even if the heartbeat and the reader both notice
+		void lost() {
+			if (mLink.lost(this)) connectionLost();
 		}
 
 		//
 		// write to output stream
 		//
 		public void write(byte[] buffer) {
-			Log.d(TAG,"write()");
+			Trace.event(Trace.EV_BT_WRITE, buffer.length, 0);
 			try {
-				mmOutStream.write(buffer,0,buffer.length);
+				// the scheduler, the heartbeat and retransmits write from
+				// different threads, keep their lines apart
+				synchronized (mmOutStream) {
+					mmOutStream.write(buffer,0,buffer.length);
+				}
 				mHandler.obtainMessage(CameraActivity.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
 			} catch (IOException e) {
 				Log.e(TAG, "Exception during write(): "+ e.toString());
@@ -313,6 +456,8 @@ public class BluetoothService {
 		}
 
 		public void cancel() {
+			mmHeartbeat.interrupt();
+			mmPinger.interrupt();
 			try {
 				mmSocket.close();
 			} catch (IOException e) {
@@ -320,5 +465,69 @@ public class BluetoothService {
 			}
 		}
 	}
+
+	//---------------------------------------------------------
+	// Thread to notice when the robot goes silent. It never writes: a
+	// write on a dead link blocks once the send buffer is full, and
+	// closing the socket in lost() is what gets such a write out again.
+	//---------------------------------------------------------
+	private class HeartbeatThread extends Thread {
+		private final CommunicationThread mmConnection;
+
+		public HeartbeatThread(CommunicationThread connection) {
+			super("Heartbeat");
+			mmConnection = connection;
+		}
+
+		public void run() {
+			while (mLink.getConnection() == mmConnection) {
+				long interval = mHeartbeatIntervalMs;
+				try {
+					Thread.sleep(interval);
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				// robots that never answered a ping are left alone
+				long silent = SystemClock.elapsedRealtime() - mmConnection.mmLastHeard;
+				if (mmConnection.mmArmed && silent > interval * mHeartbeatMisses) {
+					Log.w(TAG, "no heartbeat for " + silent + "ms, link is dead");
+					mDetectTimes.record(silent);
+					Trace.event(Trace.EV_LINK_DEAD, (int) silent, mHeartbeatMisses);
+					mmConnection.lost();
+					return;
+				}
+			}
+		}
+	}
+
+	//---------------------------------------------------------
+	// Thread to send the pings and clock sync requests, may block
+	// in write() without holding up the HeartbeatThread
+	//---------------------------------------------------------
+	private class PingThread extends Thread {
+		private final CommunicationThread mmConnection;
+
+		public PingThread(CommunicationThread connection) {
+			super("Ping");
+			mmConnection = connection;
+		}
+
+		public void run() {
+			int seq = 0;
+			while (mLink.getConnection() == mmConnection) {
+				try {
+					Thread.sleep(mHeartbeatIntervalMs);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (mmConnection.mmArmed || seq < MAX_UNANSWERED_PINGS) {
+					mmConnection.write((PING + (++seq) + "\n").getBytes());
+				}
+				byte[] sync = mClockSync.poll(SystemClock.elapsedRealtime());
+				if (sync != null) mmConnection.write(sync);
+			}
+		}
+	}
 }
 
@@ -23,20 +23,22 @@ import android.app.ActionBar;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Paint.Style;
+import android.content.ServiceConnection;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.hardware.Camera;
 import android.hardware.Camera.AutoFocusCallback;
 import android.hardware.Camera.Face;
 import android.hardware.Camera.Size;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
-import android.os.PowerManager;
 import android.speech.RecognizerIntent;
 import android.speech.tts.TextToSpeech;
 import android.util.Log;
@@ -45,12 +47,14 @@ import android.view.MenuItem;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
+import android.view.WindowManager;
 import android.widget.FrameLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 
@@ -70,6 +74,8 @@ public class CameraActivity extends Activity {
 	public static final int MESSAGE_WRITE = 3;
 	public static final int MESSAGE_DEVICE_NAME = 4;
 	public static final int MESSAGE_TOAST = 5;
+	// command injected through the StatusServer
+	public static final int MESSAGE_INJECT = 6;
 
 	// Key names received from the BluetoothChatService Handler
 	public static final String DEVICE_NAME = "device_name";
@@ -82,6 +88,10 @@ public class CameraActivity extends Activity {
 	// Voice recogition
 	private static final int SPEECH_REQUEST_CODE = 1234;
 
+	// Tracking modes
+	public static final int TRACK_FACE = 0;
+	public static final int TRACK_COLOR = 1;
+
 
 	// ===========================================================
 	// Fields
@@ -94,32 +104,83 @@ public class CameraActivity extends Activity {
 
 	// camera
 	CameraSurfaceView mCameraSurfaceView;
+	OverlayView mOverlay;
+
+	// startup - opens the camera and restores the robot link in parallel
+	StartupOrchestrator mStartup;
+
+	// front and rear camera, camera thread only
+	CameraSwitcher mCameraSwitcher;
+
+	// all axes in one "move," command per tick, only for firmware that
+	// parses it, the released firmware knows the single axis commands
+	volatile boolean mCombinedSteering = false;
+
+	// face width to meters, the robot keeps a target distance
+	DistanceEstimator mDistance;
+
+	// where to look once the target is gone, UI thread
+	final ReacquisitionPlanner mReacquisition = new ReacquisitionPlanner();
+
+	// motion fallback for when face detection loses the face
+	final MotionTracker mMotionTracker = new MotionTracker();
+	private static final long MOTION_FALLBACK_MS = 5000;
+	private static final int PREVIEW_BUFFERS = 3;
+
+	// color marker tracking, replaces face detection in TRACK_COLOR mode
+	final BlobTracker mBlobTracker = new BlobTracker();
+	volatile int mTrackingMode = TRACK_FACE;
+
+	// runs the frame detectors striped across all cores
+	final FrameProcessor mFrameProcessor = new FrameProcessor();
+
+	// optional MJPEG stream of the preview for an operator's laptop
+	final MjpegStreamer mStreamer = new MjpegStreamer(MjpegStreamer.DEFAULT_PORT, STREAM_QUALITY, STREAM_FPS);
+	private static final int STREAM_QUALITY = 60;
+	private static final int STREAM_FPS = 10;
+
+	// status snapshot and command injection over the network
+	StatusServer mStatusServer;
+
+	// duty-cycles preview, detection and commands while nobody is around
+	PowerGovernor mPower;
+	private static final float IDLE_SCREEN_BRIGHTNESS = 0.05f;
+
+	// corrects face positions for the robot's own rotation
+	final GyroCompensator mGyro = new GyroCompensator();
+	private SensorManager mSensorManager;
 	
-	// bluetooth
-	private String mBluetoothDeviceName = null;
+	// bluetooth, the link and the scheduler live in the TrackerService
+	private volatile String mBluetoothDeviceName = null;
 	private BluetoothAdapter mBluetoothAdapter = null;
-	private BluetoothService mBluetoothService = null;
+	private volatile BluetoothService mBluetoothService = null;
+	private volatile CommandScheduler mCommandScheduler = null;
+	private volatile TrackerService mTracker;
+	private boolean mTrackerBound;
+	private volatile String mLastCommand = "";
 	long start = 0;
 	long timeLastVoiceCommand = 0;
 	long timeLastCommand = 0;
-
-	// power manager
-	PowerManager pm;
-	PowerManager.WakeLock wakelock;
 	
 	// ===========================================================
 	// Methods from SuperClass/Interfaces
 	// ===========================================================
 	@Override
-	@SuppressWarnings("deprecation")
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		mStartup = new StartupOrchestrator();
+		mCameraSwitcher = new CameraSwitcher();
+		mDistance = new DistanceEstimator(this);
+		mStatusServer = new StatusServer(StatusServer.DEFAULT_PORT, mStatusSource, mHandler, MESSAGE_INJECT);
+		mPower = new PowerGovernor(mPowerListener, PowerGovernor.DEFAULT_IDLE_AFTER_MS);
 		setContentView(R.layout.activity_camera);
 		tvBluetooth = (TextView) findViewById(R.id.textView5);
 		tvCommand = (TextView) findViewById(R.id.textView4);
 		tvArduino = (TextView) findViewById(R.id.textView7);
-		pm = (PowerManager)getSystemService(Context.POWER_SERVICE);
-		wakelock = pm.newWakeLock(PowerManager.SCREEN_BRIGHT_WAKE_LOCK| PowerManager.ON_AFTER_RELEASE, TAG);
+		// screen on while in front; the TrackerService keeps the CPU
+		// awake for the link
+		getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+		mSensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
 		
 		//--------------
 		// camera stuff
@@ -127,6 +188,8 @@ public class CameraActivity extends Activity {
 		mCameraSurfaceView = new CameraSurfaceView(this);
 		FrameLayout frameLayout = (FrameLayout) findViewById(R.id.preview_framelayout);
 		frameLayout.addView(mCameraSurfaceView);
+		mOverlay = new OverlayView(this);
+		frameLayout.addView(mOverlay);
 		TextView tv = (TextView) findViewById(R.id.textView1);
 		tv.bringToFront();
 		
@@ -139,6 +202,12 @@ public class CameraActivity extends Activity {
 			finish();
 			return;
 		}
+
+		// reconnect the last robot while the camera is opening, see
+		// mTrackerConnection
+		if (mBluetoothAdapter.isEnabled()) {
+			setupBluetoothService();
+		}
 	}
 	
 	@Override
@@ -150,15 +219,16 @@ public class CameraActivity extends Activity {
 		if (!mBluetoothAdapter.isEnabled()) {
 			Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
 			startActivityForResult(enableIntent, REQUEST_ENABLE_BT);
-		} else if (mBluetoothService == null) {
-			mBluetoothService = new BluetoothService(this, mHandler);
+		} else if (!mTrackerBound) {
+			setupBluetoothService();
 		}
 	}
 	
 	@Override
 	protected void onResume() {
 		super.onResume();
-		wakelock.acquire();
+		Sensor gyroscope = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+		if (gyroscope != null) mSensorManager.registerListener(mGyro, gyroscope, SensorManager.SENSOR_DELAY_FASTEST);
 		//----------
 		// bluetooth
 		//----------
@@ -170,7 +240,7 @@ public class CameraActivity extends Activity {
 	@Override
 	protected void onPause() {
 		super.onPause();
-		wakelock.release();
+		mSensorManager.unregisterListener(mGyro);
 	}
 
 	
@@ -187,7 +257,7 @@ public class CameraActivity extends Activity {
 			break;
 		case REQUEST_ENABLE_BT:
 			if (resultCode == Activity.RESULT_OK) {
-				mBluetoothService = new BluetoothService(this, mHandler);
+				if (!mTrackerBound) setupBluetoothService();
 			} else {
 				// User did not enable Bluetooth or an error occurred
 				Log.d(TAG, "BT not enabled");
@@ -210,34 +280,34 @@ public class CameraActivity extends Activity {
 					//String magicWord = this.getResources().getString(R.string.magicword);
 					String magicWord = "open sesame";
 					if (mostLikelyThingHeard.toLowerCase().contains("light on")) {
-						sendMessage("light,\n");
+						sendMessage("light,\n", CommandScheduler.PRIORITY_CRITICAL);
 						Toast.makeText(this, "light", Toast.LENGTH_SHORT).show();
 					}
 					
 					else if (mostLikelyThingHeard.toLowerCase().contains("light off")) {
-						sendMessage("nolight,\n");
+						sendMessage("nolight,\n", CommandScheduler.PRIORITY_CRITICAL);
 						Toast.makeText(this, "nolight", Toast.LENGTH_SHORT).show();
 					}
 					
 					else if (mostLikelyThingHeard.toLowerCase().contains("play")) {
-						sendMessage("play,\n");
+						sendMessage("play,\n", CommandScheduler.PRIORITY_CRITICAL);
 						Toast.makeText(this, "play", Toast.LENGTH_SHORT).show();
 					}
 					
 					else if (mostLikelyThingHeard.toLowerCase().contains("stop")) {
-						sendMessage("noplay,\n");
+						sendMessage("noplay,\n", CommandScheduler.PRIORITY_CRITICAL);
 						Toast.makeText(this, "noplay", Toast.LENGTH_SHORT).show();
 					}
 					
 					else if (mostLikelyThingHeard.toLowerCase().contains("much light")) // too much light
-						sendMessage("dimlight,\n");
+						sendMessage("dimlight,\n", CommandScheduler.PRIORITY_CRITICAL);
 
 					// EXTRA
 					else if (mostLikelyThingHeard.toLowerCase().contains("hot tea"))
-						sendMessage("relais,\n");
+						sendMessage("relais,\n", CommandScheduler.PRIORITY_CRITICAL);
 					
 					else if (mostLikelyThingHeard.toLowerCase().contains("hot enough"))
-						sendMessage("norelais,\n");
+						sendMessage("norelais,\n", CommandScheduler.PRIORITY_CRITICAL);
 
 					else
 						Toast.makeText(this, mostLikelyThingHeard, Toast.LENGTH_SHORT).show();
@@ -263,7 +333,80 @@ public class CameraActivity extends Activity {
 	public boolean onOptionsItemSelected(MenuItem item) {
 		// Handle item selection
 		switch (item.getItemId()) {
-
+		case R.id.menu_dump_trace:
+			int count = Trace.dump();
+			Toast.makeText(this, "Dumped " + count + " trace events", Toast.LENGTH_SHORT).show();
+			return true;
+		case R.id.menu_trace_verbose:
+			Trace.setLevel(item.isChecked() ? Log.INFO : Log.VERBOSE);
+			item.setChecked(Trace.isLoggable(Trace.EV_DRAW));
+			return true;
+		case R.id.menu_track_color:
+			final int mode = item.isChecked() ? TRACK_FACE : TRACK_COLOR;
+			item.setChecked(mode == TRACK_COLOR);
+			mStartup.runOnCameraThread(new Runnable() {
+				public void run() {
+					mCameraSurfaceView.setTrackingMode(mode);
+				}
+			});
+			return true;
+		case R.id.menu_switch_camera:
+			mStartup.runOnCameraThread(new Runnable() {
+				public void run() {
+					mCameraSurfaceView.switchCamera();
+				}
+			});
+			return true;
+		case R.id.menu_learn_color:
+			mBlobTracker.learnColor();
+			Toast.makeText(this, "Marker color taken from the center of the picture", Toast.LENGTH_SHORT).show();
+			return true;
+		case R.id.menu_stream:
+			if (mStreamer.isRunning()) {
+				mStreamer.stop();
+			} else {
+				mStreamer.start();
+				Toast.makeText(this, "Streaming on localhost:" + MjpegStreamer.DEFAULT_PORT, Toast.LENGTH_SHORT).show();
+			}
+			item.setChecked(mStreamer.isRunning());
+			return true;
+		case R.id.menu_control:
+			if (mStatusServer.isRunning()) {
+				mStatusServer.stop();
+			} else {
+				mStatusServer.start();
+				Toast.makeText(this, "Control server on localhost:" + StatusServer.DEFAULT_PORT, Toast.LENGTH_SHORT).show();
+			}
+			item.setChecked(mStatusServer.isRunning());
+			return true;
+		case R.id.menu_reliable:
+			if (mBluetoothService == null) return true;
+			mBluetoothService.setReliable(!item.isChecked());
+			item.setChecked(mBluetoothService.isReliable());
+			return true;
+		case R.id.menu_directional_search:
+			mReacquisition.setDirectional(!item.isChecked());
+			item.setChecked(mReacquisition.isDirectional());
+			return true;
+		case R.id.menu_combined:
+			mCombinedSteering = !item.isChecked();
+			item.setChecked(mCombinedSteering);
+			return true;
+		case R.id.menu_calibrate_distance:
+			if (mDistance.calibrate(mCameraSurfaceView.mSteering.mmLastWidth)) {
+				Toast.makeText(this, "Distance calibrated", Toast.LENGTH_SHORT).show();
+			} else {
+				Toast.makeText(this, "No face to calibrate with", Toast.LENGTH_SHORT).show();
+			}
+			return true;
+		case R.id.menu_benchmark:
+			runBenchmark();
+			return true;
+		case R.id.menu_stats:
+			String stats = getStats();
+			Log.i(TAG, stats);
+			Toast.makeText(this, stats, Toast.LENGTH_LONG).show();
+			return true;
 		default:
 			return super.onOptionsItemSelected(item);
 		}
@@ -272,7 +415,15 @@ public class CameraActivity extends Activity {
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
-		if (mBluetoothService != null) mBluetoothService.reset();
+		if (mTracker != null) mTracker.setClient(null);
+		if (mTrackerBound) unbindService(mTrackerConnection);
+		// leaving for good takes the robot link down, a recreated activity
+		// binds to it again
+		if (isFinishing()) stopService(new Intent(this, TrackerService.class));
+		mStartup.quit();
+		mFrameProcessor.quit();
+		mStreamer.stop();
+		mStatusServer.stop();
 	}
 	
 	// ===========================================================
@@ -288,21 +439,140 @@ public class CameraActivity extends Activity {
 	public void onBtnSend(View v) {
 		Log.d(TAG,"onBtnSend()");
 		start = System.currentTimeMillis();
-		sendMessage("foobar\n");
+		sendMessage("foobar\n", CommandScheduler.PRIORITY_ACTION);
 	}
 	
 	public void onBtnExtra(View v) {
-		mCameraSurfaceView.camera.autoFocus(null);
+		mStartup.runOnCameraThread(new Runnable() {
+			public void run() {
+				Camera camera = mCameraSurfaceView.camera;
+				if (camera != null) camera.autoFocus(null);
+			}
+		});
+	}
+
+	private void setupBluetoothService() {
+		Intent intent = new Intent(this, TrackerService.class);
+		startService(intent);
+		mTrackerBound = bindService(intent, mTrackerConnection, Context.BIND_AUTO_CREATE);
+	}
+
+	private final ServiceConnection mTrackerConnection = new ServiceConnection() {
+		public void onServiceConnected(ComponentName name, IBinder binder) {
+			mTracker = ((TrackerService.LocalBinder) binder).getService();
+			mBluetoothService = mTracker.getBluetoothService();
+			mCommandScheduler = mTracker.getCommandScheduler();
+			mTracker.setClient(mHandler);
+
+			// the link may have outlived an earlier instance of this activity
+			mHandler.obtainMessage(MESSAGE_STATE_CHANGE, mBluetoothService.getState(), -1).sendToTarget();
+			mStartup.restoreLink(mBluetoothAdapter, mBluetoothService, DeviceIndex.getInstance(CameraActivity.this));
+		}
+
+		public void onServiceDisconnected(ComponentName name) {
+			// the service process died
+			mTracker = null;
+			mBluetoothService = null;
+			mCommandScheduler = null;
+		}
+	};
+
+	private String getStats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("startup: ").append(mStartup.getReport());
+		TrackerService tracker = mTracker;
+		if (tracker != null) sb.append("\n").append(tracker.getReport());
+		if (mCommandScheduler != null) sb.append("\ncommands: ").append(mCommandScheduler.getReport());
+		if (mBluetoothService != null) {
+			sb.append("\n").append(mBluetoothService.getReliableReport());
+			sb.append("\n").append(mBluetoothService.getHeartbeatReport());
+			sb.append("\n").append(mBluetoothService.getClockReport());
+		}
+		sb.append("\n").append(mMotionTracker.getReport());
+		sb.append("\n").append(mReacquisition.getReport());
+		sb.append("\n").append(mDistance.getReport());
+		sb.append("\n").append(mPower.getReport());
+		sb.append("\n").append(mGyro.getReport());
+		sb.append("\n").append(mCameraSwitcher.getReport());
+		if (mCameraSurfaceView != null) sb.append("\n").append(mCameraSurfaceView.mSteering.getReport());
+		if (mOverlay != null) sb.append("\n").append(mOverlay.getReport());
+		sb.append("\n").append(mStreamer.getReport());
+		sb.append("\n").append(mStatusServer.getReport());
+		return sb.toString();
+	}
+
+	// applies the current mode rather than the argument, changes can be
+	// reported out of order from the camera and the UI thread
+	private final PowerGovernor.Listener mPowerListener = new PowerGovernor.Listener() {
+		public void onPowerModeChanged(boolean idle) {
+			Log.i(TAG, idle ? "no target for a while, going idle" : "target back, full rate");
+			mStartup.runOnCameraThread(new Runnable() {
+				public void run() {
+					mCameraSurfaceView.applyPowerMode(mPower.isIdle());
+				}
+			});
+			mHandler.post(new Runnable() {
+				public void run() {
+					WindowManager.LayoutParams lp = getWindow().getAttributes();
+					lp.screenBrightness = mPower.isIdle() ? IDLE_SCREEN_BRIGHTNESS
+							: WindowManager.LayoutParams.BRIGHTNESS_OVERRIDE_NONE;
+					getWindow().setAttributes(lp);
+				}
+			});
+		}
+	};
+
+	// read on the StatusServer thread, only touches volatile or locked state
+	private final StatusServer.Source mStatusSource = new StatusServer.Source() {
+		public String getSnapshot() {
+			BluetoothService service = mBluetoothService;
+			int state = (service == null) ? BluetoothService.STATE_NONE : service.getState();
+			StringBuilder sb = new StringBuilder();
+			sb.append("link: ").append(stateName(state));
+			if (state == BluetoothService.STATE_CONNECTED) sb.append(' ').append(mBluetoothDeviceName);
+			sb.append("\nmode: ").append(mTrackingMode == TRACK_COLOR ? "color" : "face");
+			sb.append("\nfaces: ").append(mCameraSurfaceView == null ? 0 : mCameraSurfaceView.numFaces);
+			sb.append("\nlast command: ").append(mLastCommand);
+			sb.append("\n").append(getStats());
+			return sb.toString();
+		}
+	};
+
+	private static String stateName(int state) {
+		switch (state) {
+		case BluetoothService.STATE_LISTEN: return "listening";
+		case BluetoothService.STATE_CONNECTING: return "connecting";
+		case BluetoothService.STATE_CONNECTED: return "connected";
+		case BluetoothService.STATE_CLOSING: return "closing";
+		default: return "none";
+		}
+	}
+
+	// benchmark the frame detectors at the preview sizes this camera offers
+	private void runBenchmark() {
+		CameraSwitcher.Profile profile = mCameraSwitcher.getCurrent();
+		List<Size> sizes = (profile == null) ? null : profile.supportedPreviewSizes;
+		if (sizes == null) return;
+		final int[][] dims = new int[sizes.size()][];
+		for (int i = 0; i < dims.length; i++) dims[i] = new int[] { sizes.get(i).width, sizes.get(i).height };
+
+		Toast.makeText(this, "Benchmark running, see log", Toast.LENGTH_SHORT).show();
+		new Thread("FrameBenchmark") {
+			public void run() {
+				FrameBenchmark.run(dims);
+			}
+		}.start();
 	}
 
 	private void connectDevice(String address) {
 		Log.d(TAG,"connectDevice(): "+address);
+		if (mBluetoothService == null) return;
 		BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
 		mBluetoothService.startConnectThread(device);
 	}
 
 
-	private void sendMessage(String message) {
+	private void sendMessage(String message, int priority) {
 
 		try {
 			// check that there's actually something to send
@@ -310,15 +580,16 @@ public class CameraActivity extends Activity {
 				return;
 
 			tvCommand.setText(message);
+			mLastCommand = message.trim();
 			
 			// check if we are connected
 			if (mBluetoothService.getState() != BluetoothService.STATE_CONNECTED) {
 				return;
 			}
 	
-			// write message
-			byte[] send = message.getBytes();
-			mBluetoothService.write(send);
+			// hand the message to the scheduler, actions overtake steering
+			mCommandScheduler.submit(message, priority);
+			mStartup.mark(StartupOrchestrator.PHASE_FIRST_COMMAND);
 		}
 		catch (Exception e) {
 			// FIXME: figure out way there is an exception when enabling bluetooth
@@ -373,21 +644,31 @@ public class CameraActivity extends Activity {
 		private final String TAG = "CameraView";
 
 		SurfaceHolder mHolder;
-		Size mPreviewSize;
-		List<Size> mSupportedPreviewSizes;
-		public Camera camera;
+		// owned by the camera thread, see StartupOrchestrator
+		public volatile Camera camera;
 		Context mContext;
-		Face[] mFaces = {};
+		volatile Face[] mFaces = {};
+		volatile long mLastFaceTime = 0;
+		// System.nanoTime() when mFaces arrived
+		volatile long mFacesNanos = 0;
+
+		// preview buffers and the size they are for, kept across camera
+		// switches, camera thread only
+		byte[][] mBuffers;
+		int mPreviewWidth;
+		int mPreviewHeight;
+
+		// the rear camera is not mirrored, see draw()
+		volatile boolean mFrontFacing = true;
 
 		int scan = 0;
-		int numFaces = 0;
+		volatile int numFaces = 0;
 
 		CameraSurfaceView(Context context) {
 			super(context);
 			mContext = context;
 			mHolder = getHolder();
 			mHolder.addCallback(this);
-			setWillNotDraw(false);
 		}
 
 		AutoFocusCallback myAutoFocusCallback = new AutoFocusCallback(){
@@ -399,162 +680,366 @@ public class CameraActivity extends Activity {
 		};
 
 		@Override
-		public void surfaceCreated(SurfaceHolder holder) {
+		public void surfaceCreated(final SurfaceHolder holder) {
+			// open the camera off the UI thread
+			mStartup.runOnCameraThread(new Runnable() {
+				public void run() {
+					openCamera(holder);
+				}
+			});
+		}
+
+		// runs on the camera thread
+		private void openCamera(SurfaceHolder holder) {
+			CameraSwitcher.Profile profile = mCameraSwitcher.getCurrent();
+			if (profile == null) {
+				showToast("No camera", Toast.LENGTH_LONG);
+				return;
+			}
 			try {
-				camera = Camera.open(1);
-				camera.setDisplayOrientation(90);
+				camera = Camera.open(profile.id);
+				camera.setDisplayOrientation(profile.displayOrientation);
+				mStartup.mark(StartupOrchestrator.PHASE_CAMERA_OPEN);
 			} 
 			catch (Exception e) {
-				Toast.makeText(mContext, "Could not open Camera: "+e.getMessage(), Toast.LENGTH_LONG).show();
+				showToast("Could not open Camera: "+e.getMessage(), Toast.LENGTH_LONG);
 				//camera = null;
+				return;
 			}
 
 			try {
+				// the first time only - later opens of this camera skip the
+				// round trip for its parameters
+				if (!profile.isKnown()) {
+					profile.learn(camera.getParameters());
+					showToast("MAX faces: "+profile.maxFaces, Toast.LENGTH_LONG);
+				}
+				mFrontFacing = profile.frontFacing;
+				mGyro.setViewAngles(profile.horizontalViewAngle, profile.verticalViewAngle);
+				mGyro.setFrontFacing(profile.frontFacing);
+				// the screen width is the vertical view angle in portrait
+				mDistance.setCamera(profile.id, profile.verticalViewAngle, profile.focalLength);
+
+				// preview frames for the detectors, into recycled buffers that
+				// are kept as long as the preview size does not change
+				int width = profile.previewWidth;
+				int height = profile.previewHeight;
+				int bufferSize = width * height * ImageFormat.getBitsPerPixel(profile.previewFormat) / 8;
+				if (mBuffers == null || mBuffers[0].length != bufferSize) {
+					mBuffers = new byte[PREVIEW_BUFFERS][bufferSize];
+				}
+				if (width != mPreviewWidth || height != mPreviewHeight) {
+					mMotionTracker.configure(width, height);
+					mBlobTracker.configure(width, height);
+					mStreamer.configure(width, height);
+					mPreviewWidth = width;
+					mPreviewHeight = height;
+				} else {
+					// same size, but maybe another camera
+					mMotionTracker.reset();
+				}
+				for (byte[] buffer : mBuffers) camera.addCallbackBuffer(buffer);
+				if (mPower.isIdle()) applyPowerMode(true);
+				camera.setPreviewCallbackWithBuffer(mPreviewCallback);
+
 				camera.setPreviewDisplay(holder);
 				camera.startPreview();
+				mCameraSwitcher.onPreviewStarted();
+				mStartup.mark(StartupOrchestrator.PHASE_PREVIEW);
 				// start face detection only *after* preview has started
-				Camera.Parameters params = camera.getParameters();
 
-				Toast.makeText(mContext, "MAX faces: "+params.getMaxNumDetectedFaces(), Toast.LENGTH_LONG).show();
 				camera.setFaceDetectionListener(new MyFaceDetectionListener());
-				camera.startFaceDetection();
+				if (mTrackingMode == TRACK_FACE) camera.startFaceDetection();
 
 
 				camera.autoFocus(myAutoFocusCallback);
 
 			} catch (Exception e) {
 				Log.d(TAG, "Error starting CameraView: " + e.getMessage());
-				Toast.makeText(mContext, "Could not start Camera Preview", Toast.LENGTH_SHORT).show();
+				showToast("Could not start Camera Preview", Toast.LENGTH_SHORT);
 			}
 		}
 
-		@Override
-		public void surfaceDestroyed(SurfaceHolder holder) {
+		// runs on the camera thread
+		private void closeCamera() {
+			if (camera == null) return;
 			try {
 				camera.stopPreview();
 				camera.release();
 			}
 			catch (Exception e) {
-				Toast.makeText(mContext, "Could not stop Preview", Toast.LENGTH_SHORT).show();
+				showToast("Could not stop Preview", Toast.LENGTH_SHORT);
 			}
 			camera = null;
 		}
 
+		/**
+		 * Switch between front and rear camera, keeping the surface.
+		 * Runs on the camera thread.
+		 */
+		void switchCamera() {
+			if (camera == null || !mCameraSwitcher.beginSwitch()) return;
+			closeCamera();
+			// faces seen by the other camera mean nothing now
+			onTargets(new Face[0]);
+			openCamera(mHolder);
+		}
+
 		@Override
-		public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) {
+		public void surfaceDestroyed(SurfaceHolder holder) {
+			// the camera must be done with the surface before we return
+			mStartup.runOnCameraThreadAndWait(new Runnable() {
+				public void run() {
+					closeCamera();
+				}
+			});
 		}
 
+		private void showToast(final String text, final int duration) {
+			post(new Runnable() {
+				public void run() {
+					Toast.makeText(mContext, text, duration).show();
+				}
+			});
+		}
 
 		@Override
-		public void draw(Canvas canvas) {
-			
-			Log.d("FACEDTECT","draw()");
+		public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) {
+		}
+
+		// runs on the camera thread, hands the buffer back when done
+		private final Camera.PreviewCallback mPreviewCallback = new Camera.PreviewCallback() {
+			@Override
+			public void onPreviewFrame(byte[] data, Camera camera) {
+				mCameraSwitcher.onFrame();
+				if (!mPower.onFrame(System.currentTimeMillis())) {
+					// idle, skip detection on this frame
+				} else if (mTrackingMode == TRACK_COLOR) {
+					mFrameProcessor.process(mBlobTracker, data);
+					onTargets(mBlobTracker.getResult());
+				} else {
+					mFrameProcessor.process(mMotionTracker, data);
+				}
+				mStreamer.offerFrame(data);
+				camera.addCallbackBuffer(data);
+			}
+		};
+
+		// runs on the camera thread
+		void setTrackingMode(int mode) {
+			if (mode == mTrackingMode) return;
+			mTrackingMode = mode;
+			if (camera == null) return;
+			if (mode == TRACK_FACE) {
+				camera.startFaceDetection();
+			} else {
+				camera.stopFaceDetection();
+			}
+			onTargets(new Face[0]);
+		}
 
-			super.draw(canvas); 
-			scan++;
+		// runs on the camera thread
+		void applyPowerMode(boolean idle) {
+			CameraSwitcher.Profile profile = mCameraSwitcher.getCurrent();
+			if (camera == null || profile == null || !profile.isKnown()) return;
+			int[] range = idle ? profile.idleFpsRange : profile.fullFpsRange;
+			try {
+				Camera.Parameters params = camera.getParameters();
+				params.setPreviewFpsRange(range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+						range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+				camera.setParameters(params);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "could not change the preview frame rate", e);
+			}
+		}
 
-			int TEXTSIZE = 30;
+		// faces or marker blobs found, called on the camera thread
+		private void onTargets(Face[] faces) {
+			mFacesNanos = System.nanoTime();
+			mFaces = faces;
+			numFaces = faces.length;
+			if (faces.length > 0) {
+				mLastFaceTime = System.currentTimeMillis();
+				mPower.onActivity(mLastFaceTime);
+				mStartup.mark(StartupOrchestrator.PHASE_FIRST_FACES);
+			}
+			scheduleSteering();
+		}
 
-			Paint paint = new Paint();
 
-			float textWidth = 0;
-			int allleft = -1000;
-			int alltop = -1000;
-			int allright = 1000;
-			int allbottom = 1000;
-			int viewWidth = getWidth();
-			int viewHeight = getHeight();
+		// one control tick per new set of targets, on the UI thread, see
+		// SteeringController
+		private final SteeringController mSteering = new SteeringController();
+		private final AtomicBoolean mSteeringPending = new AtomicBoolean();
 
+		private void scheduleSteering() {
+			if (mSteeringPending.compareAndSet(false, true)) post(mSteering);
+		}
 
-			// OSD for face detection messages
-			String str = "Scan: " + scan + "    Faces detected: " + numFaces;
-			paint.setTextSize(TEXTSIZE);
-			textWidth = paint.measureText(str);
+		/**
+		 * Turns the latest targets into the overlay content and a steering
+		 * command. Runs on the UI thread, posted at most once at a time, so
+		 * a slow tick is never queued up behind the next one.
+		 */
+		class SteeringController implements Runnable {
 
-			paint.setColor(0x77000000);
-			canvas.drawRect(0, viewHeight-(TEXTSIZE+15), textWidth+40, viewHeight, paint);			
+			// stands in for the face while following motion
+			final Face[] mmMotionFaces = { new Face() };
 
-			paint.setColor(0xffffffff); 
-			canvas.drawText(str, 20, viewHeight-10, paint);
+			// face rect corrected for ego-motion
+			final Rect mmCorrected = new Rect();
 
+			// overlay rects in view pixels
+			final int[] mmRects = new int[4 * OverlayView.MAX_RECTS];
 
-			// OSD rectangles for detected faces
-			paint.setStrokeWidth(20);
-			paint.setStyle(Style.STROKE);
-			paint.setColor(0xffffffff); 
+			// width of the last face, 0 if none, for the distance calibration
+			int mmLastWidth;
 
-			for(int i=0; i<mFaces.length; i++){
-				/* bounds of a face: 
-				 * (-1000, -1000) represents the top-left of the camera field of view, and 
-				 * ( 1000,  1000) represents the bottom-right of the field of view. */
-				
-				// - compensate for the 90 degree rotation in portrait mode (top=left, right=bottom)
-				// - compensate for mirrored front camera by changing prefix
-				int faceleft   = -mFaces[i].rect.top;
-				int facetop    = -mFaces[i].rect.left;
-				int faceright  = -mFaces[i].rect.bottom;
-				int facebottom = -mFaces[i].rect.right;
-				
-				// - translate coordinate system
-				// - scale coordinate system
-				int left   = (faceleft   + 1000) * viewWidth /2000;
-				int top    = (facetop    + 1000) * viewHeight/2000;
-				int right  = (faceright  + 1000) * viewWidth /2000;
-				int bottom = (facebottom + 1000) * viewHeight/2000;
+			// statistics, guarded by this
+			long mmTicks;
+			long mmTickNanos;
 
-				// draw rectangle - because we are mirrored top=bottom and left=right
-				canvas.drawRect(right, bottom, left, top, paint);
+			SteeringController() {
+				mmMotionFaces[0].rect = new Rect();
+			}
 
-				
-				allleft   = (faceleft   > allleft)   ? faceleft   : allleft;
-				Log.d("FACES","alleft "+faceleft+" * "+allleft);
-				alltop    = (facetop    > alltop)    ? facetop    : alltop;
-				allright  = (faceright  < allright)  ? faceright  : allright;
-				allbottom = (facebottom < allbottom) ? facebottom : allbottom;
+			synchronized String getReport() {
+				return "steering: " + mmTicks + " ticks, avg " + (mmTicks == 0 ? 0 : mmTickNanos / mmTicks / 1000)
+					+ "us on the UI thread";
 			}
 
-			if (mFaces.length == 0)
-				canvas.drawColor(Color.TRANSPARENT);
-
-			//------------------------
-			// send bluetooth message
-			//------------------------
-			int horizontalPos = (allleft+allright)/2;
-			int verticalPos  = (alltop+allbottom)/2;
-			int width = allleft - allright;
-			int height = allbottom - alltop;
-			Log.d("FACES","width: "+width);
-			
-			if (System.currentTimeMillis() - timeLastCommand > 150) {
-				// no face
-				if(mFaces.length == 0)
-					sendMessage("search\n");
-				// face out of center horizontal left
-				else if (horizontalPos < -300)
-					sendMessage("left,"+horizontalPos+"\n");
-				// face out of center horizontal right
-				else if (horizontalPos > 300)
-					sendMessage("right,"+horizontalPos+"\n");
-				// face out of center vertical top
-				else if (verticalPos < -260)
-					sendMessage("up,"+verticalPos+"\n");		
-				// face out of center vertical bottom
-				else if (verticalPos > 260)
-					sendMessage("down,"+verticalPos+"\n");				
-				// face too far
-				else if (width < 500) {
-					sendMessage("forward,"+width+"\n");
-					Log.d("FACES","forward");
+			public void run() {
+				mSteeringPending.set(false);
+				long start = System.nanoTime();
+				tick();
+				synchronized (this) {
+					mmTicks++;
+					mmTickNanos += System.nanoTime() - start;
 				}
-				// face too close
-				else if (width > 750) {
-					sendMessage("back,"+width+"\n");
-					Log.d("FACES","back");
+			}
+
+			private void tick() {
+				scan++;
+				Trace.event(Trace.EV_DRAW, scan, numFaces);
+
+				// no face - follow motion for a while, it is likely the same person
+				Face[] faces = mFaces;
+				boolean motion = false;
+				if (faces.length == 0 && mTrackingMode == TRACK_FACE
+						&& System.currentTimeMillis() - mLastFaceTime < MOTION_FALLBACK_MS
+						&& mMotionTracker.getTarget(mmMotionFaces[0].rect)) {
+					faces = mmMotionFaces;
+					motion = true;
 				}
-				else
-					sendMessage("okay,"+width+","+horizontalPos+"\n");
+
+				int allleft = -1000;
+				int alltop = -1000;
+				int allright = 1000;
+				int allbottom = 1000;
+				int viewWidth = mOverlay.getWidth();
+				int viewHeight = mOverlay.getHeight();
+
+				// overlay rectangles for detected faces
+				long now = System.nanoTime();
+				boolean front = mFrontFacing;
+				int count = Math.min(faces.length, OverlayView.MAX_RECTS);
+
+				for(int i=0; i<faces.length; i++){
+					/* bounds of a face: 
+					 * (-1000, -1000) represents the top-left of the camera field of view, and 
+					 * ( 1000,  1000) represents the bottom-right of the field of view. */
+					
+					// move the face by how far the robot turned since the frame,
+					// the motion rect is recent enough as it is
+					Rect rect = faces[i].rect;
+					if (!motion) {
+						mGyro.correct(rect, mFacesNanos, now, mmCorrected);
+						rect = mmCorrected;
+					}
+
+					// - compensate for the 90 degree rotation in portrait mode (top=left, right=bottom)
+					// - compensate for mirrored front camera by changing prefix, the
+					//   mirrored sensor x axis is the vertical after the rotation
+					int faceleft   = -rect.top;
+					int faceright  = -rect.bottom;
+					int facetop    = front ? -rect.left  : rect.right;
+					int facebottom = front ? -rect.right : rect.left;
+					
+					// - translate coordinate system
+					// - scale coordinate system
+					// - because we are mirrored top=bottom and left=right
+					if (i < count) {
+						mmRects[4*i]   = (faceright  + 1000) * viewWidth /2000;
+						mmRects[4*i+1] = (facebottom + 1000) * viewHeight/2000;
+						mmRects[4*i+2] = (faceleft   + 1000) * viewWidth /2000;
+						mmRects[4*i+3] = (facetop    + 1000) * viewHeight/2000;
+					}
+					
+					allleft   = (faceleft   > allleft)   ? faceleft   : allleft;
+					Trace.event(Trace.EV_FACE, faceleft, allleft);
+					alltop    = (facetop    > alltop)    ? facetop    : alltop;
+					allright  = (faceright  < allright)  ? faceright  : allright;
+					allbottom = (facebottom < allbottom) ? facebottom : allbottom;
+				}
+
+				// redrawn only if it differs from what is on screen
+				mOverlay.setContent("Faces detected: " + numFaces, mmRects, count,
+						motion ? 0xffffff00 : 0xffffffff);
+
+				//------------------------
+				// send bluetooth message
+				//------------------------
+				int horizontalPos = (allleft+allright)/2;
+				int verticalPos  = (alltop+allbottom)/2;
+				int width = allleft - allright;
+				Trace.event(Trace.EV_FACE_WIDTH, width, horizontalPos);
+				if (faces.length > 0) mReacquisition.onTarget(horizontalPos, System.currentTimeMillis());
+				// the distance estimate only holds for a face, not for a motion
+				// box or a marker blob of unknown size
+				boolean face = faces.length > 0 && !motion && mTrackingMode == TRACK_FACE;
+				mmLastWidth = face ? width : 0;
 				
-				timeLastCommand = System.currentTimeMillis();
+				if (System.currentTimeMillis() - timeLastCommand > mPower.getCommandIntervalMs()) {
+					// cm to drive to the target distance, 0 if there or no face
+					int distance = mDistance.getCorrectionCm(mmLastWidth);
+
+					// no face - look where it was last seen going
+					if(faces.length == 0)
+						sendMessage(mReacquisition.nextCommand(System.currentTimeMillis()), CommandScheduler.PRIORITY_STEERING);
+					// face out of center and/or too far or close - all at once
+					else if (mCombinedSteering) {
+						SteeringCommand move = SteeringCommand.fromTarget(horizontalPos, verticalPos, distance);
+						if (move.isCentered())
+							sendMessage("okay,"+width+","+horizontalPos+"\n", CommandScheduler.PRIORITY_STEERING);
+						else
+							sendMessage(move.encode(), CommandScheduler.PRIORITY_STEERING);
+					}
+					// face out of center horizontal left
+					else if (horizontalPos < -SteeringCommand.PAN_DEADBAND)
+						sendMessage("left,"+horizontalPos+"\n", CommandScheduler.PRIORITY_STEERING);
+					// face out of center horizontal right
+					else if (horizontalPos > SteeringCommand.PAN_DEADBAND)
+						sendMessage("right,"+horizontalPos+"\n", CommandScheduler.PRIORITY_STEERING);
+					// face out of center vertical top
+					else if (verticalPos < -SteeringCommand.TILT_DEADBAND)
+						sendMessage("up,"+verticalPos+"\n", CommandScheduler.PRIORITY_STEERING);		
+					// face out of center vertical bottom
+					else if (verticalPos > SteeringCommand.TILT_DEADBAND)
+						sendMessage("down,"+verticalPos+"\n", CommandScheduler.PRIORITY_STEERING);				
+					// face too far - the single axis commands keep the face width
+					// they always carried, the firmware reads it as such; only
+					// the choice of command comes from the estimate
+					else if (distance > 0)
+						sendMessage("forward,"+width+"\n", CommandScheduler.PRIORITY_STEERING);
+					// face too close
+					else if (distance < 0)
+						sendMessage("back,"+width+"\n", CommandScheduler.PRIORITY_STEERING);
+					else
+						sendMessage("okay,"+width+","+horizontalPos+"\n", CommandScheduler.PRIORITY_STEERING);
+				
+					timeLastCommand = System.currentTimeMillis();
+					mPower.onCommand();
+				}
 			}
 		}
 
@@ -566,9 +1051,9 @@ public class CameraActivity extends Activity {
 
 			@Override
 			public void onFaceDetection(Face[] faces, Camera camera) {
-				mFaces = faces;
-				numFaces = faces.length;
-				invalidate();
+				// called on the camera thread; while idle most empty results
+				// are skipped, so steering does not tick at the detector rate
+				if (mTrackingMode == TRACK_FACE && mPower.onDetection(faces.length > 0)) onTargets(faces);
 			}
 		}
 	}
@@ -587,6 +1072,7 @@ public class CameraActivity extends Activity {
 				switch (msg.arg1) {
 				case BluetoothService.STATE_CONNECTED:
 					setStatus(mBluetoothDeviceName);
+					mStartup.mark(StartupOrchestrator.PHASE_BT_CONNECTED);
 					break;
 				case BluetoothService.STATE_CONNECTING:
 					setStatus("Connecting...");
@@ -608,6 +1094,7 @@ public class CameraActivity extends Activity {
 				String readMessage = new String(readBuf, 0, msg.arg1);
 				String[] words = readMessage.split(",");
 				if(words[0].equals("PROXIMITY")){
+					mPower.onActivity(System.currentTimeMillis());
 					doListen();
 				}
 				// FIXME put timing in other MSG
@@ -619,6 +1106,10 @@ public class CameraActivity extends Activity {
 				mBluetoothDeviceName = msg.getData().getString(DEVICE_NAME);
 				Toast.makeText(getApplicationContext(), "Connected to "+ mBluetoothDeviceName, Toast.LENGTH_SHORT).show();
 				break;
+			case MESSAGE_INJECT:
+				// the same actions as by voice, with the same delivery
+				CameraActivity.this.sendMessage((String) msg.obj, CommandScheduler.PRIORITY_CRITICAL);
+				break;
 			case MESSAGE_TOAST:
 				Toast.makeText(getApplicationContext(), msg.getData().getString(TOAST),
 						Toast.LENGTH_SHORT).show();
@@ -0,0 +1,193 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.util.List;
+
+import android.hardware.Camera;
+import android.hardware.Camera.CameraInfo;
+import android.hardware.Camera.Size;
+import android.os.SystemClock;
+
+
+/**
+ * Knows the front and rear camera and what it takes to start each of
+ * them, so switching, e.g. when the robot reverses, costs little more
+ * than the unavoidable release and open. Most devices can not keep both
+ * cameras open, so instead of a second open camera the switcher keeps a
+ * Profile per camera: everything read from its parameters the first time
+ * it was opened. A later switch skips getParameters() and reuses the
+ * preview surface and the preview buffers.
+ *
+ * Switch latency is measured from the request to the preview running and
+ * to the first preview frame of the new camera, the time we are blind.
+ */
+public class CameraSwitcher {
+
+	/**
+	 * What was learned about a camera the first time it was opened. Written
+	 * once on the camera thread, read from the UI and the StatusServer
+	 * thread too, hence volatile; fullFpsRange is written last.
+	 */
+	public static class Profile {
+		public final int id;
+		public final boolean frontFacing;
+		public final int displayOrientation;
+		public volatile int previewWidth;
+		public volatile int previewHeight;
+		public volatile int previewFormat;
+		public volatile List<Size> supportedPreviewSizes;
+		public volatile int[] fullFpsRange;
+		public volatile int[] idleFpsRange;
+		public volatile float horizontalViewAngle;
+		public volatile float verticalViewAngle;
+		public volatile float focalLength;
+		public volatile int maxFaces;
+
+		Profile(int id, CameraInfo info) {
+			this.id = id;
+			frontFacing = info.facing == CameraInfo.CAMERA_FACING_FRONT;
+			// the activity is locked to portrait, display rotation 0
+			if (frontFacing) {
+				// the front camera preview is mirrored
+				displayOrientation = (360 - info.orientation % 360) % 360;
+			} else {
+				displayOrientation = (info.orientation + 360) % 360;
+			}
+		}
+
+		/** @return true once filled in from the camera parameters */
+		public boolean isKnown() {
+			return fullFpsRange != null;
+		}
+
+		public void learn(Camera.Parameters params) {
+			Size size = params.getPreviewSize();
+			previewWidth = size.width;
+			previewHeight = size.height;
+			previewFormat = params.getPreviewFormat();
+			supportedPreviewSizes = params.getSupportedPreviewSizes();
+			horizontalViewAngle = params.getHorizontalViewAngle();
+			verticalViewAngle = params.getVerticalViewAngle();
+			focalLength = params.getFocalLength();
+			maxFaces = params.getMaxNumDetectedFaces();
+
+			// the current range is the full rate, the slowest supported
+			// one (they are sorted) is used when idle
+			int[] full = new int[2];
+			params.getPreviewFpsRange(full);
+			List<int[]> ranges = params.getSupportedPreviewFpsRange();
+			idleFpsRange = (ranges == null || ranges.isEmpty()) ? full : ranges.get(0);
+			fullFpsRange = full;
+		}
+	}
+
+	private final Profile[] mProfiles;
+	private final int mFrontId;
+	private final int mBackId;
+	private volatile int mCurrentId;
+
+	// switch in progress, camera thread only
+	private long mSwitchStart;
+	private boolean mSwitching;
+
+	private final LatencyHistogram mPreviewTimes = new LatencyHistogram();
+	private final LatencyHistogram mFirstFrameTimes = new LatencyHistogram();
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public CameraSwitcher() {
+		int count = Camera.getNumberOfCameras();
+		mProfiles = new Profile[count];
+		int front = -1, back = -1;
+		CameraInfo info = new CameraInfo();
+		for (int id = 0; id < count; id++) {
+			Camera.getCameraInfo(id, info);
+			mProfiles[id] = new Profile(id, info);
+			if (info.facing == CameraInfo.CAMERA_FACING_FRONT && front < 0) front = id;
+			if (info.facing == CameraInfo.CAMERA_FACING_BACK && back < 0) back = id;
+		}
+		mFrontId = front;
+		mBackId = back;
+		// the tracker looks at people with the front camera
+		mCurrentId = (front >= 0) ? front : back;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public int getCurrentId() {
+		return mCurrentId;
+	}
+
+	/** @return profile of the current camera, or null if there is none */
+	public Profile getCurrent() {
+		int id = mCurrentId;
+		return (id < 0) ? null : mProfiles[id];
+	}
+
+	public boolean isFrontFacing() {
+		Profile profile = getCurrent();
+		return profile == null || profile.frontFacing;
+	}
+
+	public boolean canSwitch() {
+		return mFrontId >= 0 && mBackId >= 0;
+	}
+
+	public String getReport() {
+		return "camera switch: to preview " + mPreviewTimes + ", to first frame " + mFirstFrameTimes;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Make the other camera current, call on the camera thread before
+	 * releasing the old camera.
+	 *
+	 * @return false if there is no other camera
+	 */
+	public boolean beginSwitch() {
+		if (!canSwitch()) return false;
+		mCurrentId = (mCurrentId == mFrontId) ? mBackId : mFrontId;
+		mSwitchStart = SystemClock.elapsedRealtime();
+		mSwitching = true;
+		return true;
+	}
+
+	/** The new camera's preview is running, camera thread. */
+	public void onPreviewStarted() {
+		if (mSwitching) mPreviewTimes.record(SystemClock.elapsedRealtime() - mSwitchStart);
+	}
+
+	/** A preview frame arrived, camera thread. */
+	public void onFrame() {
+		if (!mSwitching) return;
+		mSwitching = false;
+		long elapsed = SystemClock.elapsedRealtime() - mSwitchStart;
+		mFirstFrameTimes.record(elapsed);
+		Trace.event(Trace.EV_CAM_SWITCH, mCurrentId, (int) elapsed);
+	}
+}
@@ -0,0 +1,256 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import android.util.Log;
+
+
+/**
+ * Estimates the robot clock (Arduino millis()) in phone time, NTP style,
+ * so delays can be told apart by direction instead of only as a round
+ * trip.
+ *
+ * The phone sends "sync,seq,t1" with its own time t1, the robot answers
+ * "time,seq,t1,t2,t3" with t2 when the request arrived and t3 when the
+ * answer left, in its time. With t4 the arrival of the answer:
+ *
+ *   offset = ((t2 - t1) + (t3 - t4)) / 2    robot minus phone time
+ *   delay  = (t4 - t1) - (t3 - t2)          time on the link
+ *
+ * Firmware that leaves the first 2 * WINDOW requests unanswered does not
+ * know them and is not asked again until the next connection.
+ *
+ * Only the exchange with the smallest delay out of every WINDOW is used,
+ * its offset is least affected by queueing on the link. The drift of the
+ * two clocks is the slope of those picks over time.
+ *
+ * Any line from the robot may carry its send time as an extra last field
+ * "@millis", it then counts towards the robot to phone latency. An ACK
+ * with that field counts towards phone to robot for the command it
+ * acknowledges.
+ */
+public class ClockSync {
+	// Debugging
+	private static final String TAG = "ClockSync";
+
+	public static final String SYNC = "sync,";
+	public static final String TIME = "time,";
+	public static final String TIMESTAMP = "@";
+
+	// exchanges per filter window, and the rate once the first window is in
+	private static final int WINDOW = 8;
+	private static final long SYNC_INTERVAL_MS = 5000;
+
+	// filtered picks kept for the drift, at WINDOW * SYNC_INTERVAL_MS apart
+	private static final int MAX_POINTS = 16;
+	// picks closer in time than this give no usable drift
+	private static final long MIN_DRIFT_SPAN_MS = 60000;
+
+	// guarded by this
+	private int mSeq;
+	private int mRequests;
+	private int mAnswers;
+	private long mLastSync;
+	private int mSamples;
+	private long mWindowDelay = Long.MAX_VALUE;
+	private long mWindowOffset;
+	private long mWindowTime;
+	private boolean mSynced;
+	private long mOffset;
+	private long mOffsetTime;
+	// offsets are traced relative to the first one, the raw offset does
+	// not fit the 24 bits of a trace field
+	private long mTraceBase;
+	private boolean mTraceBaseSet;
+	private long mMinDelay = Long.MAX_VALUE;
+	private double mDrift;  // ms of offset per ms of phone time
+	private final long[] mPointTimes = new long[MAX_POINTS];
+	private final long[] mPointOffsets = new long[MAX_POINTS];
+	private int mPoints;
+
+	private final LatencyHistogram mUplink = new LatencyHistogram();
+	private final LatencyHistogram mDownlink = new LatencyHistogram();
+	private final LatencyHistogram mRobotTimes = new LatencyHistogram();
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public synchronized boolean isSynced() {
+		return mSynced;
+	}
+
+	public synchronized String getReport() {
+		if (!mSynced) return "clock: not synced, " + mSamples + " samples";
+		return "clock: robot " + (mOffset >= 0 ? "+" : "") + mOffset + "ms, drift "
+			+ Math.round(mDrift * 1e6) + "ppm, min delay " + mMinDelay + "ms"
+			+ "\n  to robot: " + mUplink
+			+ "\n  from robot: " + mDownlink
+			+ "\n  in robot: " + mRobotTimes;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/** A new connection, the robot may have restarted its clock. */
+	public synchronized void reset() {
+		mSynced = false;
+		mSamples = 0;
+		mWindowDelay = Long.MAX_VALUE;
+		mMinDelay = Long.MAX_VALUE;
+		mDrift = 0;
+		mPoints = 0;
+		mRequests = 0;
+		mAnswers = 0;
+		mLastSync = 0;
+		mTraceBaseSet = false;
+	}
+
+	/**
+	 * Called regularly, by the ping thread.
+	 *
+	 * @return a sync request to send, or null if none is due
+	 */
+	public synchronized byte[] poll(long now) {
+		// the first window as fast as we are polled, then at leisure; not
+		// at all for firmware that does not answer
+		if (mAnswers == 0 && mRequests >= 2 * WINDOW) return null;
+		boolean first = !mSynced && mRequests < 2 * WINDOW;
+		if (!first && now - mLastSync < SYNC_INTERVAL_MS) return null;
+		mLastSync = now;
+		mRequests++;
+		return (SYNC + (++mSeq) + "," + now + "\n").getBytes();
+	}
+
+	/**
+	 * Handle a "time,seq,t1,t2,t3" answer, called on the communication
+	 * thread.
+	 */
+	public void onTime(String line, long t4) {
+		long t1, t2, t3;
+		int seq;
+		try {
+			String[] fields = line.substring(TIME.length()).split(",");
+			seq = Integer.parseInt(fields[0].trim());
+			t1 = Long.parseLong(fields[1].trim());
+			t2 = Long.parseLong(fields[2].trim());
+			t3 = Long.parseLong(fields[3].trim());
+		} catch (RuntimeException e) {
+			Log.e(TAG, "bad time: " + line);
+			return;
+		}
+
+		long delay = (t4 - t1) - (t3 - t2);
+		long offset = ((t2 - t1) + (t3 - t4)) / 2;
+		synchronized (this) {
+			mAnswers++;
+			// late answers to an earlier request sat in a queue somewhere
+			if (seq != mSeq || delay < 0) return;
+			mRobotTimes.record(t3 - t2);
+			if (!mTraceBaseSet) {
+				mTraceBase = offset;
+				mTraceBaseSet = true;
+			}
+			Trace.event(Trace.EV_SYNC, (int) delay, (int) (offset - mTraceBase));
+			if (delay < mWindowDelay) {
+				mWindowDelay = delay;
+				mWindowOffset = offset;
+				mWindowTime = t1 + (t4 - t1) / 2;
+			}
+			if (++mSamples % WINDOW == 0) {
+				addPoint(mWindowTime, mWindowOffset, mWindowDelay);
+				mWindowDelay = Long.MAX_VALUE;
+			}
+		}
+	}
+
+	private void addPoint(long time, long offset, long delay) {
+		mSynced = true;
+		mOffset = offset;
+		mOffsetTime = time;
+		if (delay < mMinDelay) mMinDelay = delay;
+
+		if (mPoints == MAX_POINTS) {
+			System.arraycopy(mPointTimes, 1, mPointTimes, 0, MAX_POINTS - 1);
+			System.arraycopy(mPointOffsets, 1, mPointOffsets, 0, MAX_POINTS - 1);
+			mPoints--;
+		}
+		mPointTimes[mPoints] = time;
+		mPointOffsets[mPoints] = offset;
+		mPoints++;
+
+		// least squares slope of offset over time, relative to the oldest
+		// pick to keep the sums small
+		if (time - mPointTimes[0] < MIN_DRIFT_SPAN_MS) return;
+		double sx = 0, sy = 0, sxx = 0, sxy = 0;
+		for (int i = 0; i < mPoints; i++) {
+			double x = mPointTimes[i] - mPointTimes[0];
+			double y = mPointOffsets[i] - mPointOffsets[0];
+			sx += x;
+			sy += y;
+			sxx += x * x;
+			sxy += x * y;
+		}
+		double d = mPoints * sxx - sx * sx;
+		if (d > 0) mDrift = (mPoints * sxy - sx * sy) / d;
+	}
+
+	/**
+	 * @param robotTime robot clock, ms
+	 * @return the same moment in phone time, or -1 if not synced yet
+	 */
+	public synchronized long toPhoneTime(long robotTime) {
+		if (!mSynced) return -1;
+		long phone = robotTime - mOffset;
+		return robotTime - (mOffset + Math.round(mDrift * (phone - mOffsetTime)));
+	}
+
+	/** A line stamped by the robot at robotTime arrived at now. */
+	public void onInbound(long robotTime, long now) {
+		long sent = toPhoneTime(robotTime);
+		if (sent >= 0) mDownlink.record(now - sent);
+	}
+
+	/** A command sent at sent reached the robot at robotTime. */
+	public void onUplink(long sent, long robotTime) {
+		long arrived = toPhoneTime(robotTime);
+		if (arrived >= 0) mUplink.record(arrived - sent);
+	}
+
+	/**
+	 * @return the robot time of a line ending in ",@millis", or -1
+	 */
+	public static long getTimestamp(String line) {
+		int at = line.lastIndexOf("," + TIMESTAMP);
+		if (at < 0) return -1;
+		try {
+			return Long.parseLong(line.substring(at + 1 + TIMESTAMP.length()).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/** @return the line without its ",@millis" field */
+	public static String stripTimestamp(String line) {
+		int at = line.lastIndexOf("," + TIMESTAMP);
+		return (at < 0) ? line : line.substring(0, at);
+	}
+}
@@ -0,0 +1,213 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.util.ArrayDeque;
+
+import android.util.Log;
+
+
+/**
+ * Sits in front of BluetoothService and decides what goes out next.
+ *
+ * Discrete actions ("light,", "norelais,", ...) are queued in order and
+ * always go before steering. Steering is continuous, so only the newest
+ * steering command is kept, and it is dropped if it could not be sent
+ * within one control tick. A burst of steering can therefore never delay
+ * an action by more than the write that is in progress.
+ *
+ * Critical actions share the action queue but are written with
+ * acknowledged delivery, see ReliableChannel. Only their first copy keeps
+ * the queue order: retransmits are written by the ReliableChannel timer
+ * directly, so a retransmitted "norelais," can reach the robot after
+ * actions that were queued later.
+ */
+public class CommandScheduler {
+	// Debugging
+	private static final String TAG = "CommandScheduler";
+
+	// Priority classes, actions (critical or not) go before steering
+	public static final int PRIORITY_ACTION = 0;    // in order, never dropped
+	public static final int PRIORITY_STEERING = 1;  // newest wins, dropped when stale
+	public static final int PRIORITY_CRITICAL = 2;  // like action, acknowledged by the robot
+	private static final int PRIORITY_COUNT = 3;
+
+	// steering older than one control tick is no longer worth sending
+	public static final long STEERING_DEADLINE_MS = 150;
+
+	private final BluetoothService mService;
+	private final ArrayDeque<Command> mActions = new ArrayDeque<Command>();
+	private Command mSteering;
+	private boolean mRunning;
+	// a sender left over from before a quick stop() / start() sees the
+	// generation changed and quits
+	private int mGeneration;
+
+	// statistics per priority class, guarded by this
+	private final long[] mSent = new long[PRIORITY_COUNT];
+	private final long[] mDropped = new long[PRIORITY_COUNT];
+	private final long[] mTotalLatency = new long[PRIORITY_COUNT];
+	private final long[] mMaxLatency = new long[PRIORITY_COUNT];
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public CommandScheduler(BluetoothService service) {
+		mService = service;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return snapshot of the queue statistics of a priority class
+	 */
+	public synchronized Stats getStats(int priority) {
+		Stats stats = new Stats();
+		stats.sent = mSent[priority];
+		stats.dropped = mDropped[priority];
+		stats.avgLatencyUs = (mSent[priority] == 0) ? 0 : mTotalLatency[priority] / mSent[priority] / 1000;
+		stats.maxLatencyUs = mMaxLatency[priority] / 1000;
+		return stats;
+	}
+
+	public String getReport() {
+		return "action " + getStats(PRIORITY_ACTION) + ", critical " + getStats(PRIORITY_CRITICAL)
+			+ ", steering " + getStats(PRIORITY_STEERING);
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	public synchronized void start() {
+		if (mRunning) return;
+		mRunning = true;
+		new SenderThread(++mGeneration).start();
+	}
+
+	public synchronized void stop() {
+		mRunning = false;
+		mActions.clear();
+		mSteering = null;
+		notifyAll();
+	}
+
+	/**
+	 * Queue a message for sending, never blocks.
+	 */
+	public synchronized void submit(String message, int priority) {
+		Command command = new Command(message.getBytes(), priority, System.nanoTime());
+		if (priority != PRIORITY_STEERING) {
+			mActions.add(command);
+		} else {
+			// a newer steering command replaces one that was not sent yet
+			if (mSteering != null) drop(mSteering, command.queued);
+			mSteering = command;
+		}
+		notifyAll();
+	}
+
+	private synchronized Command next(int generation) throws InterruptedException {
+		while (mRunning && generation == mGeneration && mActions.isEmpty() && mSteering == null) wait();
+		if (!mRunning || generation != mGeneration) return null;
+
+		Command command = mActions.poll();
+		if (command != null) return command;
+
+		command = mSteering;
+		mSteering = null;
+		return command;
+	}
+
+	private synchronized void record(Command command, long now) {
+		long latency = now - command.queued;
+		mSent[command.priority]++;
+		mTotalLatency[command.priority] += latency;
+		if (latency > mMaxLatency[command.priority]) mMaxLatency[command.priority] = latency;
+		Trace.event(Trace.EV_CMD_SENT, command.priority, (int) (latency / 1000));
+	}
+
+	private void drop(Command command, long now) {
+		mDropped[command.priority]++;
+		Trace.event(Trace.EV_CMD_DROPPED, command.priority, (int) ((now - command.queued) / 1000000));
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private class SenderThread extends Thread {
+		private final int mmGeneration;
+
+		SenderThread(int generation) {
+			super(TAG);
+			mmGeneration = generation;
+		}
+
+		public void run() {
+			try {
+				Command command;
+				while ((command = next(mmGeneration)) != null) {
+					long now = System.nanoTime();
+					if (command.priority == PRIORITY_STEERING
+							&& now - command.queued > STEERING_DEADLINE_MS * 1000000) {
+						synchronized (CommandScheduler.this) {
+							drop(command, now);
+						}
+						continue;
+					}
+					if (command.priority == PRIORITY_CRITICAL) mService.writeReliable(command.data);
+					else mService.write(command.data);
+					record(command, now);
+				}
+			} catch (InterruptedException e) {
+				Log.d(TAG, "sender interrupted");
+			}
+		}
+	}
+
+	private static class Command {
+		final byte[] data;
+		final int priority;
+		final long queued;
+
+		Command(byte[] data, int priority, long queued) {
+			this.data = data;
+			this.priority = priority;
+			this.queued = queued;
+		}
+	}
+
+	public static class Stats {
+		public long sent;
+		public long dropped;
+		public long avgLatencyUs;
+		public long maxLatencyUs;
+
+		@Override
+		public String toString() {
+			return sent + " sent, " + dropped + " dropped, latency avg " + avgLatencyUs
+				+ "us max " + maxLatencyUs + "us";
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+
+/**
+ * Persistent index of the bluetooth devices we have connected to, plus
+ * those only seen or failed with during this run. It lets
+ * DeviceListActivity show a ranked list right away instead of waiting
+ * for a full discovery cycle, and lets the startup code find the last
+ * robot we talked to.
+ *
+ * Only devices with a successful connection are persisted, anything a
+ * discovery happens to find nearby is forgotten with the process. One
+ * preference per device, keyed by MAC address, holding
+ * "rssi,lastSeen,lastConnect,avgLatency,successes,failures,name".
+ */
+public class DeviceIndex {
+	// Debugging
+	private static final String TAG = "DeviceIndex";
+
+	private static final String PREFS_NAME = "device_index";
+
+	public static final int NO_RSSI = Short.MIN_VALUE;
+
+	// devices connected to within this period get a ranking bonus
+	private static final long RECENT_MS = 7L * 24 * 60 * 60 * 1000;
+
+	private static DeviceIndex sInstance;
+
+	private final SharedPreferences mPrefs;
+	private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	private DeviceIndex(Context context) {
+		mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		SharedPreferences.Editor stale = mPrefs.edit();
+		for (Map.Entry<String, ?> pref : mPrefs.getAll().entrySet()) {
+			Entry entry = Entry.decode(pref.getKey(), String.valueOf(pref.getValue()));
+			// older versions also kept every device a discovery found
+			if (entry != null && entry.successes > 0) mEntries.put(entry.address, entry);
+			else stale.remove(pref.getKey());
+		}
+		stale.apply();
+	}
+
+	public static synchronized DeviceIndex getInstance(Context context) {
+		if (sInstance == null) sInstance = new DeviceIndex(context.getApplicationContext());
+		return sInstance;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public synchronized Entry get(String address) {
+		return mEntries.get(address);
+	}
+
+	/**
+	 * A robot is a device we have successfully connected to before.
+	 */
+	public synchronized boolean isKnownRobot(String address) {
+		Entry entry = mEntries.get(address);
+		return entry != null && entry.successes > 0;
+	}
+
+	/**
+	 * @return the device with the most recent successful connection, or null
+	 */
+	public synchronized Entry getLastConnected() {
+		Entry last = null;
+		for (Entry entry : mEntries.values()) {
+			if (entry.lastConnect > 0 && (last == null || entry.lastConnect > last.lastConnect))
+				last = entry;
+		}
+		return last;
+	}
+
+	/**
+	 * @return all devices, most likely to connect first
+	 */
+	public synchronized List<Entry> getRanked() {
+		List<Entry> list = new ArrayList<Entry>(mEntries.values());
+		// one time for the whole sort, or entries can change rank midway
+		final long now = System.currentTimeMillis();
+		Collections.sort(list, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return b.score(now) - a.score(now);
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * Ranking score, higher is better. Unknown devices score as a device
+	 * without history.
+	 */
+	public synchronized int getScore(String address) {
+		Entry entry = mEntries.get(address);
+		return (entry != null) ? entry.score(System.currentTimeMillis()) : Entry.score(0, 0, 0, 0, NO_RSSI);
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	public synchronized void recordSeen(String address, String name, int rssi) {
+		Entry entry = obtain(address, name);
+		entry.lastSeen = System.currentTimeMillis();
+		if (rssi != NO_RSSI) entry.rssi = rssi;
+		save(entry);
+	}
+
+	public synchronized void recordConnected(String address, String name, long latency) {
+		Entry entry = obtain(address, name);
+		entry.lastConnect = System.currentTimeMillis();
+		entry.lastSeen = entry.lastConnect;
+		// running average over the last ~8 connects
+		entry.avgLatency = (entry.successes == 0) ? latency : (entry.avgLatency * 7 + latency) / 8;
+		entry.successes++;
+		save(entry);
+	}
+
+	public synchronized void recordFailed(String address, String name) {
+		Entry entry = obtain(address, name);
+		entry.failures++;
+		save(entry);
+	}
+
+	private Entry obtain(String address, String name) {
+		Entry entry = mEntries.get(address);
+		if (entry == null) {
+			entry = new Entry(address);
+			mEntries.put(address, entry);
+		}
+		if (name != null) entry.name = name;
+		return entry;
+	}
+
+	private void save(Entry entry) {
+		if (entry.successes == 0) return;
+		mPrefs.edit().putString(entry.address, entry.encode()).apply();
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	public static class Entry {
+		public final String address;
+		public String name = "";
+		public int rssi = NO_RSSI;
+		public long lastSeen;
+		public long lastConnect;
+		public long avgLatency;
+		public int successes;
+		public int failures;
+
+		Entry(String address) {
+			this.address = address;
+		}
+
+		int score(long now) {
+			return score(successes, failures, avgLatency, (now - lastConnect < RECENT_MS) ? 1 : 0, rssi);
+		}
+
+		//
+		// success rate dominates, then recent use, connect latency and signal
+		//
+		static int score(int successes, int failures, long avgLatency, int recent, int rssi) {
+			int score = 1000 * (successes + 1) / (successes + failures + 2);
+			score += recent * 200;
+			score -= (int) Math.min(avgLatency, 10000) / 50;
+			if (rssi != NO_RSSI) score += Math.max(0, rssi + 100);
+			return score;
+		}
+
+		String encode() {
+			return rssi + "," + lastSeen + "," + lastConnect + "," + avgLatency + ","
+				+ successes + "," + failures + "," + name;
+		}
+
+		static Entry decode(String address, String value) {
+			String[] fields = value.split(",", 7);
+			if (fields.length != 7) return null;
+			try {
+				Entry entry = new Entry(address);
+				entry.rssi        = Integer.parseInt(fields[0]);
+				entry.lastSeen    = Long.parseLong(fields[1]);
+				entry.lastConnect = Long.parseLong(fields[2]);
+				entry.avgLatency  = Long.parseLong(fields[3]);
+				entry.successes   = Integer.parseInt(fields[4]);
+				entry.failures    = Integer.parseInt(fields[5]);
+				entry.name        = fields[6];
+				return entry;
+			} catch (NumberFormatException e) {
+				Log.e(TAG, "dropping corrupt entry for " + address);
+				return null;
+			}
+		}
+	}
+}
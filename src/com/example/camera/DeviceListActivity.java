@@ -18,6 +18,10 @@ package com.example.camera;
  */
 
 
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import android.app.Activity;
@@ -44,6 +48,11 @@ import android.widget.AdapterView.OnItemClickListener;
  * devices detected in the area after discovery. When a device is chosen
  * by the user, the MAC address of the device is sent back to the parent
  * Activity in the result Intent.
+ *
+ * Paired devices and robots from the DeviceIndex are listed right away,
+ * ranked by how likely a connection is to succeed. Discovery starts by
+ * itself to find out which of them are in range, and stops as soon as a
+ * known robot shows up.
  */
 public class DeviceListActivity extends Activity {
 	// Debugging
@@ -57,6 +66,7 @@ public class DeviceListActivity extends Activity {
 	private BluetoothAdapter mBtAdapter;
 	private ArrayAdapter<String> mPairedDevicesArrayAdapter;
 	private ArrayAdapter<String> mNewDevicesArrayAdapter;
+	private DeviceIndex mDeviceIndex;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -103,19 +113,36 @@ public class DeviceListActivity extends Activity {
 
 		// Get the local Bluetooth adapter
 		mBtAdapter = BluetoothAdapter.getDefaultAdapter();
+		mDeviceIndex = DeviceIndex.getInstance(this);
 
 		// Get a set of currently paired devices
 		Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
+		Set<String> listed = new HashSet<String>();
 
 		// If there are paired devices, add each one to the ArrayAdapter
-		if (pairedDevices.size() > 0) {
-			findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
-			for (BluetoothDevice device : pairedDevices) {
-				mPairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+		for (BluetoothDevice device : pairedDevices) {
+			mPairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+			listed.add(device.getAddress());
+		}
+
+		// Add robots we connected to before, even if they are not paired
+		for (DeviceIndex.Entry entry : mDeviceIndex.getRanked()) {
+			if (entry.successes > 0 && listed.add(entry.address)) {
+				mPairedDevicesArrayAdapter.add(entry.name + "\n" + entry.address);
 			}
+		}
+
+		if (mPairedDevicesArrayAdapter.getCount() > 0) {
+			findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
+			sortByRank(mPairedDevicesArrayAdapter);
 		} else {
 			mPairedDevicesArrayAdapter.add("No Devices");
 		}
+
+		// Listed robots are not necessarily in range, go looking right
+		// away; discovery stops as soon as a known robot is seen
+		doDiscovery();
+		scanButton.setVisibility(View.GONE);
 	}
 
 	@Override
@@ -153,6 +180,26 @@ public class DeviceListActivity extends Activity {
 		mBtAdapter.startDiscovery();
 	}
 
+	// Get the device MAC address, which is the last 17 chars of a list entry
+	private static String addressOf(String info) {
+		return info.substring(Math.max(0, info.length() - 17));
+	}
+
+	// Orders list entries by their DeviceIndex score, best first. Scores
+	// depend on the time, so they are taken once before sorting
+	private void sortByRank(ArrayAdapter<String> adapter) {
+		final Map<String, Integer> scores = new HashMap<String, Integer>();
+		for (int i = 0; i < adapter.getCount(); i++) {
+			String address = addressOf(adapter.getItem(i));
+			scores.put(address, mDeviceIndex.getScore(address));
+		}
+		adapter.sort(new Comparator<String>() {
+			public int compare(String a, String b) {
+				return scores.get(addressOf(b)) - scores.get(addressOf(a));
+			}
+		});
+	}
+
 	// The on-click listener for all devices in the ListViews
 	private OnItemClickListener mDeviceClickListener = new OnItemClickListener() {
 		public void onItemClick(AdapterView<?> av, View v, int arg2, long arg3) {
@@ -161,7 +208,8 @@ public class DeviceListActivity extends Activity {
 
 			// Get the device MAC address, which is the last 17 chars in the View
 			String info = ((TextView) v).getText().toString();
-			String address = info.substring(info.length() - 17);
+			String address = addressOf(info);
+			if (!BluetoothAdapter.checkBluetoothAddress(address)) return;
 
 			// Create the result Intent and include the MAC address
 			Intent intent = new Intent();
@@ -184,9 +232,22 @@ public class DeviceListActivity extends Activity {
 			if (BluetoothDevice.ACTION_FOUND.equals(action)) {
 				// Get the BluetoothDevice object from the Intent
 				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-				// If it's already paired, skip it, because it's been listed already
-				if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-					mNewDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+				int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) DeviceIndex.NO_RSSI);
+				mDeviceIndex.recordSeen(device.getAddress(), device.getName(), rssi);
+
+				// If it's already listed as paired or known, skip it
+				String info = device.getName() + "\n" + device.getAddress();
+				if (device.getBondState() != BluetoothDevice.BOND_BONDED
+						&& !mDeviceIndex.isKnownRobot(device.getAddress())
+						&& mNewDevicesArrayAdapter.getPosition(info) < 0) {
+					mNewDevicesArrayAdapter.add(info);
+					sortByRank(mNewDevicesArrayAdapter);
+				}
+
+				// A robot we know is in range - no need to wait for the rest
+				if (mDeviceIndex.isKnownRobot(device.getAddress())) {
+					if (D) Log.d(TAG, "known robot found, stopping discovery");
+					mBtAdapter.cancelDiscovery();
 				}
 				// When discovery is finished, change the Activity title
 			} else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
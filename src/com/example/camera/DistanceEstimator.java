@@ -0,0 +1,147 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+
+/**
+ * Turns the width of a face into its distance in meters, so the robot
+ * keeps the same distance on every phone and with either camera.
+ *
+ * Pinhole model: a face FACE_WIDTH_M wide at distance d spans
+ * width / 2000 of the screen, and the screen spans the view angle fov,
+ * so d = FACE_WIDTH_M * 1000 / (width * tan(fov / 2)). In portrait the
+ * screen horizontal is the camera's vertical view angle.
+ *
+ * Reported view angles are rounded or plain wrong on some devices, and
+ * faces differ, so each camera has a scale factor: calibrate() with a
+ * face CALIBRATION_DISTANCE_M away sets it, and it is kept in the
+ * preferences, keyed by camera id.
+ */
+public class DistanceEstimator {
+	// Debugging
+	private static final String TAG = "DistanceEstimator";
+
+	private static final String PREFS_NAME = "distance";
+
+	// bounding box width of an average face
+	private static final float FACE_WIDTH_M = 0.16f;
+	// used while the camera reported nothing sensible
+	private static final float DEFAULT_VIEW_ANGLE = 55;
+
+	// distance the robot keeps, about the old band of 500 .. 750 face
+	// width at the default angle
+	public static final float TARGET_M = 0.5f;
+	public static final float CALIBRATION_DISTANCE_M = 1.0f;
+	// no distance correction within this of the target
+	private static final float TOLERANCE_M = 0.1f;
+
+	private final SharedPreferences mPrefs;
+
+	private volatile int mCameraId = -1;
+	private volatile float mViewAngle = DEFAULT_VIEW_ANGLE;
+	private volatile float mTanHalfAngle = (float) Math.tan(Math.toRadians(DEFAULT_VIEW_ANGLE / 2));
+	private volatile float mFocalLength;
+	private volatile float mScale = 1;
+	private volatile float mLastM = -1;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public DistanceEstimator(Context context) {
+		mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * The camera in use, from its parameters.
+	 *
+	 * @param screenViewAngle view angle across the screen width, degrees
+	 * @param focalLength in mm, for the report only
+	 */
+	public void setCamera(int cameraId, float screenViewAngle, float focalLength) {
+		if (screenViewAngle > 0 && screenViewAngle < 180) {
+			mViewAngle = screenViewAngle;
+			mTanHalfAngle = (float) Math.tan(Math.toRadians(screenViewAngle / 2));
+		}
+		mFocalLength = focalLength;
+		mScale = mPrefs.getFloat(key(cameraId), 1);
+		mCameraId = cameraId;
+	}
+
+	public String getReport() {
+		return "distance: camera " + mCameraId + ", view " + mViewAngle + "deg, focal " + mFocalLength
+			+ "mm, scale " + mScale + ", last " + Math.round(mLastM * 100) + "cm, target "
+			+ Math.round(TARGET_M * 100) + "cm";
+	}
+
+	private static String key(int cameraId) {
+		return "scale_" + cameraId;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * @param width face width, 0 .. 2000 screen units
+	 * @return distance in meters, or -1 for no face
+	 */
+	public float estimate(int width) {
+		if (width <= 0) return -1;
+		float meters = mScale * FACE_WIDTH_M * 1000 / (width * mTanHalfAngle);
+		mLastM = meters;
+		return meters;
+	}
+
+	/**
+	 * @return how far to drive towards the face in cm, negative to back
+	 *         off, 0 within the tolerance of the target distance
+	 */
+	public int getCorrectionCm(int width) {
+		float meters = estimate(width);
+		if (meters < 0) return 0;
+		float error = meters - TARGET_M;
+		if (Math.abs(error) <= TOLERANCE_M) return 0;
+		return Math.round(error * 100);
+	}
+
+	/**
+	 * Take the current face as CALIBRATION_DISTANCE_M away.
+	 *
+	 * @return false if there is no face to calibrate with
+	 */
+	public boolean calibrate(int width) {
+		int cameraId = mCameraId;
+		if (width <= 0 || cameraId < 0) return false;
+		float raw = FACE_WIDTH_M * 1000 / (width * mTanHalfAngle);
+		mScale = CALIBRATION_DISTANCE_M / raw;
+		mPrefs.edit().putFloat(key(cameraId), mScale).apply();
+		Log.i(TAG, "camera " + cameraId + " calibrated, scale " + mScale);
+		return true;
+	}
+}
@@ -0,0 +1,121 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.util.Random;
+
+import android.util.Log;
+
+
+/**
+ * On-device benchmark of the preview frame detectors. Feeds synthetic
+ * NV21 frames (noise plus a moving orange square) at the given preview
+ * sizes and logs the cost per frame for 1 up to all cores, so the gain
+ * from striped processing can be read off. Run it from the menu, off the
+ * UI thread.
+ */
+public class FrameBenchmark {
+	// Debugging
+	private static final String TAG = "FrameBenchmark";
+
+	private static final int WARMUP_FRAMES = 20;
+	private static final int FRAMES = 200;
+
+	/**
+	 * @param sizes preview sizes as {width, height} pairs
+	 * @return the results, one line per size and thread count
+	 */
+	public static String run(int[][] sizes) {
+		int cores = Math.min(Runtime.getRuntime().availableProcessors(), FrameProcessor.MAX_STRIPES);
+		StringBuilder report = new StringBuilder();
+		for (int[] size : sizes) {
+			long motionBase = 0, blobBase = 0;
+			for (int threads = 1; threads <= cores; threads++) {
+				FrameProcessor processor = new FrameProcessor(threads);
+				long motion = benchmarkMotion(processor, size[0], size[1]);
+				long blob = benchmarkBlob(processor, size[0], size[1]);
+				processor.quit();
+				if (threads == 1) {
+					motionBase = motion;
+					blobBase = blob;
+				}
+
+				String line = size[0] + "x" + size[1] + " " + threads + " threads: motion " + motion
+					+ "us/frame (x" + speedup(motionBase, motion) + "), blob " + blob
+					+ "us/frame (x" + speedup(blobBase, blob) + ")";
+				Log.i(TAG, line);
+				report.append(line).append('\n');
+			}
+		}
+		return report.toString();
+	}
+
+	private static String speedup(long base, long time) {
+		if (time == 0) return "-";
+		long tenths = base * 10 / time;
+		return (tenths / 10) + "." + (tenths % 10);
+	}
+
+	static long benchmarkMotion(FrameProcessor processor, int width, int height) {
+		MotionTracker tracker = new MotionTracker();
+		tracker.configure(width, height);
+		return benchmark(processor, tracker, makeFrames(width, height));
+	}
+
+	static long benchmarkBlob(FrameProcessor processor, int width, int height) {
+		BlobTracker tracker = new BlobTracker();
+		tracker.configure(width, height);
+		return benchmark(processor, tracker, makeFrames(width, height));
+	}
+
+	// average us per frame
+	private static long benchmark(FrameProcessor processor, FrameProcessor.StripeTask task, byte[][] frames) {
+		for (int i = 0; i < WARMUP_FRAMES; i++) processor.process(task, frames[i % frames.length]);
+		long start = System.nanoTime();
+		for (int i = 0; i < FRAMES; i++) processor.process(task, frames[i % frames.length]);
+		return (System.nanoTime() - start) / FRAMES / 1000;
+	}
+
+	/**
+	 * A few NV21 frames with sensor-like noise and a bright square in the
+	 * default marker color that moves from frame to frame.
+	 */
+	static byte[][] makeFrames(int width, int height) {
+		Random random = new Random(42);
+		byte[][] frames = new byte[4][width * height * 3 / 2];
+		int square = height / 4;
+		for (int f = 0; f < frames.length; f++) {
+			byte[] frame = frames[f];
+			for (int i = 0; i < width * height; i++) frame[i] = (byte) (96 + random.nextInt(16));
+			for (int i = width * height; i < frame.length; i++) frame[i] = (byte) 128;
+			int x0 = f * width / 8;
+			int y0 = height / 3;
+			for (int y = y0; y < y0 + square; y++)
+				for (int x = x0; x < x0 + square; x++)
+					frame[y * width + x] = (byte) 230;
+			for (int y = y0 & ~1; y < y0 + square; y += 2)
+				for (int x = x0 & ~1; x < x0 + square; x += 2) {
+					frame[width * height + (y >> 1) * width + x] = (byte) 190;      // V
+					frame[width * height + (y >> 1) * width + x + 1] = (byte) 80;   // U
+				}
+		}
+		return frames;
+	}
+}
@@ -0,0 +1,191 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/**
+ * Splits the processing of a preview frame into horizontal stripes and
+ * runs them in parallel, fork-join style: the calling thread takes the
+ * first stripe, a fixed set of worker threads take the others, and the
+ * caller merges the partial results once all stripes are done.
+ *
+ * Workers are started once and parked between frames, nothing is
+ * allocated per frame. Only one frame is processed at a time.
+ */
+public class FrameProcessor {
+
+	/**
+	 * A detector that can work on a range of rows of its grid. Stripes
+	 * must only write to their own rows and their own partial results.
+	 */
+	public interface StripeTask {
+		/** @return number of rows the task splits into stripes */
+		int getRows();
+		/** called on the calling thread before the stripes run */
+		void begin(byte[] frame, int stripes);
+		/** called on any thread, once per stripe */
+		void processStripe(byte[] frame, int stripe, int rowStart, int rowEnd);
+		/** called on the calling thread after all stripes are done */
+		void merge(int stripes);
+	}
+
+	// upper bound for the number of stripes, sizes per-stripe buffers
+	public static final int MAX_STRIPES = 8;
+
+	private final int mThreads;
+	private final Worker[] mWorkers;
+
+	// current job, guarded by this
+	private StripeTask mTask;
+	private byte[] mFrame;
+	private int mStripes;
+	private int mRows;
+	private int mPending;
+	private long mGeneration;
+	private boolean mRunning = true;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param threads number of threads working on a frame, including the
+	 *        calling thread
+	 */
+	public FrameProcessor(int threads) {
+		mThreads = Math.max(1, Math.min(threads, MAX_STRIPES));
+		mWorkers = new Worker[mThreads - 1];
+		for (int i = 0; i < mWorkers.length; i++) {
+			mWorkers[i] = new Worker(i + 1);
+			mWorkers[i].start();
+		}
+	}
+
+	public FrameProcessor() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public int getThreads() {
+		return mThreads;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Run a task over a frame and return once its results are merged. Even
+	 * when interrupted it only returns once no worker reads the frame any
+	 * more, the caller recycles it; the interrupt is kept for the caller.
+	 */
+	public void process(StripeTask task, byte[] frame) {
+		int rows = task.getRows();
+		int stripes = Math.min(mThreads, rows);
+		task.begin(frame, stripes);
+
+		if (stripes > 1) {
+			synchronized (this) {
+				mTask = task;
+				mFrame = frame;
+				mRows = rows;
+				mStripes = stripes;
+				mPending = stripes - 1;
+				mGeneration++;
+				notifyAll();
+			}
+		}
+
+		// the calling thread does the first stripe itself
+		task.processStripe(frame, 0, 0, rows / stripes);
+
+		if (stripes > 1) {
+			boolean interrupted = false;
+			synchronized (this) {
+				while (mPending > 0) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				mTask = null;
+				mFrame = null;
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+		task.merge(stripes);
+	}
+
+	public synchronized void quit() {
+		mRunning = false;
+		notifyAll();
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private class Worker extends Thread {
+		private final int mmStripe;
+		private long mmGeneration;
+
+		Worker(int stripe) {
+			super("FrameWorker-" + stripe);
+			mmStripe = stripe;
+			setDaemon(true);
+		}
+
+		public void run() {
+			while (true) {
+				StripeTask task;
+				byte[] frame;
+				int rowStart, rowEnd;
+				synchronized (FrameProcessor.this) {
+					while (mRunning && mGeneration == mmGeneration) {
+						try {
+							FrameProcessor.this.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					// a frame handed out before quit() is still done, its
+					// caller waits for it
+					if (mGeneration == mmGeneration) return;
+					mmGeneration = mGeneration;
+					// fewer stripes than workers for this frame
+					if (mmStripe >= mStripes) continue;
+					task = mTask;
+					frame = mFrame;
+					rowStart = mRows * mmStripe / mStripes;
+					rowEnd = mRows * (mmStripe + 1) / mStripes;
+				}
+
+				task.processStripe(frame, mmStripe, rowStart, rowEnd);
+
+				synchronized (FrameProcessor.this) {
+					if (--mPending == 0) FrameProcessor.this.notifyAll();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.graphics.Rect;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+
+
+/**
+ * Corrects face positions for the robot's own rotation. A face rect is
+ * seen at frame time but steered on later; if the robot turned in
+ * between, the face has moved in the picture by the angle turned. The
+ * gyroscope is sampled at full rate into a lock-free ring buffer, and
+ * correct() integrates the rotation between frame time and now and
+ * shifts the rect by it.
+ *
+ * Axis mapping, phone in portrait with the front camera and
+ * setDisplayOrientation(90): the screen horizontal is the camera rect's
+ * y axis (top/bottom) and covers the camera's vertical view angle, the
+ * screen vertical is the rect's x axis (left/right) and covers its
+ * horizontal view angle. Turning about the device y axis (yaw) swings the
+ * front camera's view towards device +x, so a still face moves to screen
+ * left; pitching about device x swings it down, so the face moves up the
+ * screen. The rear camera looks the other way and is not mirrored: yaw
+ * moves the face the other way along the rect's y axis, pitch the same
+ * way along its x axis.
+ */
+public class GyroCompensator implements SensorEventListener {
+
+	private static final int CAPACITY = 512;  // must be a power of two
+	private static final int MASK = CAPACITY - 1;
+
+	// face detection results arrive this long after the exposure
+	private static final long DEFAULT_FRAME_LATENCY_NS = 60000000L;
+
+	// gyro samples, written by the sensor thread only and published
+	// through mCursor
+	private final long[] mTimes = new long[CAPACITY];
+	private final float[] mRateX = new float[CAPACITY];
+	private final float[] mRateY = new float[CAPACITY];
+	private final AtomicLong mCursor = new AtomicLong();
+
+	// System.nanoTime() minus sensor time, the smallest seen is the one
+	// with the least delivery delay
+	private volatile long mClockOffset = Long.MAX_VALUE;
+
+	// camera rect units (2000 across) per radian
+	private volatile float mUnitsPerRadH = (float) (2000 / Math.toRadians(45));
+	private volatile float mUnitsPerRadV = (float) (2000 / Math.toRadians(55));
+	private volatile long mFrameLatencyNs = DEFAULT_FRAME_LATENCY_NS;
+	private volatile boolean mFrontFacing = true;
+
+	// UI thread only
+	private final float[] mAngle = new float[2];
+
+	// statistics, guarded by this
+	private long mCorrections;
+	private long mSumShiftH;
+	private long mSumShiftV;
+	private int mMaxShift;
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @param horizontalViewAngle from Camera.Parameters, in degrees
+	 * @param verticalViewAngle from Camera.Parameters, in degrees
+	 */
+	public void setViewAngles(float horizontalViewAngle, float verticalViewAngle) {
+		// rotated by 90 degrees, see the class comment
+		if (verticalViewAngle > 0) mUnitsPerRadH = (float) (2000 / Math.toRadians(verticalViewAngle));
+		if (horizontalViewAngle > 0) mUnitsPerRadV = (float) (2000 / Math.toRadians(horizontalViewAngle));
+	}
+
+	public void setFrontFacing(boolean frontFacing) {
+		mFrontFacing = frontFacing;
+	}
+
+	public void setFrameLatencyMs(long ms) {
+		mFrameLatencyNs = ms * 1000000L;
+	}
+
+	public synchronized String getReport() {
+		if (mCorrections == 0) return "gyro: " + mCursor.get() + " samples, no corrections";
+		return "gyro: " + mCursor.get() + " samples, " + mCorrections + " corrections, avg shift h "
+			+ mSumShiftH / mCorrections + " v " + mSumShiftV / mCorrections + ", max " + mMaxShift;
+	}
+
+	// ===========================================================
+	// Methods from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public void onSensorChanged(SensorEvent event) {
+		long offset = System.nanoTime() - event.timestamp;
+		if (offset < mClockOffset) mClockOffset = offset;
+
+		long n = mCursor.get();
+		int slot = (int) (n & MASK);
+		mTimes[slot] = event.timestamp;
+		mRateX[slot] = event.values[0];
+		mRateY[slot] = event.values[1];
+		mCursor.set(n + 1);
+	}
+
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int accuracy) {
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Shift a face rect seen in a frame delivered at frameNanos to where
+	 * the face is at nowNanos, both System.nanoTime(). Called on the UI
+	 * thread.
+	 *
+	 * @return false if there are no gyro samples, out is then a copy of in
+	 */
+	public boolean correct(Rect in, long frameNanos, long nowNanos, Rect out) {
+		out.set(in);
+		long offset = mClockOffset;
+		if (offset == Long.MAX_VALUE) return false;
+
+		float[] angle = mAngle;
+		if (!integrate(frameNanos - mFrameLatencyNs - offset, nowNanos - offset, angle)) return false;
+
+		// yaw moves the face to screen left, which is rect top/bottom up;
+		// pitch moves it up the screen, which is rect left/right up
+		float yaw = mFrontFacing ? angle[1] : -angle[1];
+		int shiftH = clamp(Math.round(yaw * mUnitsPerRadH));
+		int shiftV = clamp(Math.round(angle[0] * mUnitsPerRadV));
+		out.offset(shiftV, shiftH);
+
+		synchronized (this) {
+			mCorrections++;
+			mSumShiftH += Math.abs(shiftH);
+			mSumShiftV += Math.abs(shiftV);
+			mMaxShift = Math.max(mMaxShift, Math.max(Math.abs(shiftH), Math.abs(shiftV)));
+		}
+		return true;
+	}
+
+	/**
+	 * Rotation about device x and y between two sensor times, in radians.
+	 * Each sample's rate holds from the previous sample up to its own
+	 * time, the newest rate is extended up to toNs.
+	 *
+	 * @return false if the samples do not reach back to fromNs
+	 */
+	boolean integrate(long fromNs, long toNs, float[] out) {
+		out[0] = 0;
+		out[1] = 0;
+		long end = mCursor.get();
+		if (end < 2 || toNs <= fromNs) return false;
+
+		double x = 0, y = 0;
+		long last = end - 1;
+		long i = last;
+		boolean covered = false;
+		for (; i > 0 && i > end - CAPACITY; i--) {
+			int slot = (int) (i & MASK);
+			long previous = mTimes[(int) ((i - 1) & MASK)];
+			long from = Math.max(previous, fromNs);
+			long to = (i == last) ? toNs : Math.min(mTimes[slot], toNs);
+			if (to > from) {
+				double dt = (to - from) / 1e9;
+				x += mRateX[slot] * dt;
+				y += mRateY[slot] * dt;
+			}
+			if (previous <= fromNs) {
+				covered = true;
+				break;
+			}
+		}
+
+		// the writer may have lapped the oldest slots we read, i - 1
+		if (!covered || mCursor.get() - (i - 1) > CAPACITY) return false;
+		out[0] = (float) x;
+		out[1] = (float) y;
+		return true;
+	}
+
+	private static int clamp(int shift) {
+		return Math.max(-2000, Math.min(shift, 2000));
+	}
+}
@@ -0,0 +1,94 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/**
+ * Distribution of durations in milliseconds with power of two buckets:
+ * bucket i counts values below 2^i ms, the last bucket everything
+ * longer. Percentiles are reported as the upper bound of their bucket.
+ * Recording does not allocate.
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 17;  // up to about a minute
+
+	// guarded by this
+	private final long[] mBuckets = new long[BUCKETS];
+	private long mCount;
+	private long mSum;
+	private long mMin = Long.MAX_VALUE;
+	private long mMax;
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public synchronized long getCount() {
+		return mCount;
+	}
+
+	public synchronized long getMax() {
+		return mMax;
+	}
+
+	/**
+	 * @param percent 0..100
+	 * @return upper bound of the bucket the percentile falls in, in ms
+	 */
+	public synchronized long getPercentile(int percent) {
+		if (mCount == 0) return 0;
+		long rank = (mCount * percent + 99) / 100;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			seen += mBuckets[i];
+			if (seen >= rank) return 1L << i;
+		}
+		return mMax;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	public synchronized void record(long ms) {
+		if (ms < 0) ms = 0;
+		int bucket = 64 - Long.numberOfLeadingZeros(ms);
+		mBuckets[Math.min(bucket, BUCKETS - 1)]++;
+		mCount++;
+		mSum += ms;
+		if (ms < mMin) mMin = ms;
+		if (ms > mMax) mMax = ms;
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < BUCKETS; i++) mBuckets[i] = 0;
+		mCount = 0;
+		mSum = 0;
+		mMin = Long.MAX_VALUE;
+		mMax = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		if (mCount == 0) return "n=0";
+		return "n=" + mCount + " min " + mMin + " avg " + mSum / mCount + " p50<" + getPercentile(50)
+			+ " p90<" + getPercentile(90) + " p99<" + getPercentile(99) + " max " + mMax + "ms";
+	}
+}
@@ -0,0 +1,172 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Lock-free connection lifecycle of the BluetoothService:
+ *
+ *   NONE -> CONNECTING -> CONNECTED -> NONE
+ *   any  -> CLOSING -> NONE                   (reset)
+ *
+ * The state, the pending connect attempt and the live connection form one
+ * immutable snapshot behind a single AtomicReference, so every transition
+ * is one compareAndSet over all three. A thread that loses a race, e.g. a
+ * connect attempt finishing after reset() or after a newer attempt, is
+ * told so and cleans up after itself; at most one connection is ever
+ * published.
+ *
+ * Plain Java, so the transitions can be stress tested off-device.
+ */
+public class LinkState<A extends LinkState.Endpoint, C extends LinkState.Endpoint> {
+
+	public static final int NONE = 0;
+	public static final int CONNECTING = 2;
+	public static final int CONNECTED = 3;
+	public static final int CLOSING = 4;
+
+	/** A connect attempt or connection that can be torn down. */
+	public interface Endpoint {
+		void cancel();
+	}
+
+	private final AtomicReference<Snapshot<A, C>> mSnapshot =
+		new AtomicReference<Snapshot<A, C>>(new Snapshot<A, C>(NONE, null, null));
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public int get() {
+		return mSnapshot.get().state;
+	}
+
+	/** @return the live connection, or null */
+	public C getConnection() {
+		return mSnapshot.get().connection;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Start tracking a new connect attempt, tearing down whatever is there
+	 * and waiting out a concurrent reset().
+	 */
+	public void connect(A attempt) {
+		while (true) {
+			Snapshot<A, C> s = mSnapshot.get();
+			if (s.state == CLOSING) {
+				Thread.yield();
+			} else if (s.state != NONE) {
+				reset();
+			} else if (mSnapshot.compareAndSet(s, new Snapshot<A, C>(CONNECTING, attempt, null))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The attempt succeeded, publish its connection.
+	 *
+	 * @return false if the attempt is no longer wanted, connection has then
+	 *         been cancelled
+	 */
+	public boolean connected(A attempt, C connection) {
+		while (true) {
+			Snapshot<A, C> s = mSnapshot.get();
+			if (s.state != CONNECTING || s.attempt != attempt) {
+				connection.cancel();
+				return false;
+			}
+			if (mSnapshot.compareAndSet(s, new Snapshot<A, C>(CONNECTED, null, connection))) return true;
+		}
+	}
+
+	/**
+	 * The attempt failed.
+	 *
+	 * @return false if it was no longer wanted anyway, so the failure is not
+	 *         worth reporting
+	 */
+	public boolean failed(A attempt) {
+		while (true) {
+			Snapshot<A, C> s = mSnapshot.get();
+			if (s.state != CONNECTING || s.attempt != attempt) return false;
+			if (mSnapshot.compareAndSet(s, new Snapshot<A, C>(NONE, null, null))) return true;
+		}
+	}
+
+	/**
+	 * The connection died. Only the live connection may take the link
+	 * down, and only once even if several threads notice.
+	 *
+	 * @return false if connection was not live (any more)
+	 */
+	public boolean lost(C connection) {
+		while (true) {
+			Snapshot<A, C> s = mSnapshot.get();
+			if (s.state != CONNECTED || s.connection != connection) return false;
+			if (mSnapshot.compareAndSet(s, new Snapshot<A, C>(NONE, null, null))) {
+				connection.cancel();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Tear down the attempt and the connection, whichever there is.
+	 *
+	 * @return false if another reset() is already doing it
+	 */
+	public boolean reset() {
+		Snapshot<A, C> closing = new Snapshot<A, C>(CLOSING, null, null);
+		Snapshot<A, C> s;
+		do {
+			s = mSnapshot.get();
+			if (s.state == CLOSING) return false;
+		} while (!mSnapshot.compareAndSet(s, closing));
+
+		// only this thread gets here until the state is NONE again
+		if (s.attempt != null) s.attempt.cancel();
+		if (s.connection != null) s.connection.cancel();
+		mSnapshot.set(new Snapshot<A, C>(NONE, null, null));
+		return true;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private static class Snapshot<A, C> {
+		final int state;
+		final A attempt;
+		final C connection;
+
+		Snapshot(int state, A attempt, C connection) {
+			this.state = state;
+			this.attempt = attempt;
+			this.connection = connection;
+		}
+	}
+}
@@ -0,0 +1,345 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.util.Log;
+
+
+/**
+ * Streams the camera preview as multipart MJPEG over HTTP, so an operator
+ * can watch from a laptop. Like the StatusServer it only listens on the
+ * loopback interface, there is no authentication; forward the port with
+ * "adb forward tcp:8080 tcp:8080" and open http://localhost:8080/.
+ *
+ * Preview frames are copied into a small pool of recycled buffers and
+ * JPEG encoded on a dedicated encoder thread. When all buffers are busy
+ * the frame is dropped instead of queued, so the stream never lags
+ * behind. Each client is served the newest encoded frame and skips any
+ * it was too slow to send.
+ */
+public class MjpegStreamer {
+	// Debugging
+	private static final String TAG = "MjpegStreamer";
+
+	public static final int DEFAULT_PORT = 8080;
+
+	// one buffer being encoded, one waiting
+	private static final int POOL_SIZE = 2;
+
+	private static final String BOUNDARY = "frame";
+
+	private final int mPort;
+	private volatile int mQuality;
+	private volatile long mFrameIntervalNs;
+
+	// recycled preview buffers, each with its YuvImage wrapper; the queues
+	// stay for good, a buffer is resized by the camera thread when it
+	// takes it from mFree and the preview size has changed
+	private final ArrayBlockingQueue<Frame> mFree = new ArrayBlockingQueue<Frame>(POOL_SIZE);
+	private final ArrayBlockingQueue<Frame> mFilled = new ArrayBlockingQueue<Frame>(POOL_SIZE);
+	private volatile int mWidth;
+	private volatile int mHeight;
+	private long mLastOffer;
+
+	private volatile boolean mRunning;
+	private ServerSocket mServerSocket;
+	private Thread mEncoderThread;
+	private Thread mAcceptThread;
+	private final AtomicInteger mClients = new AtomicInteger();
+	// connected clients, closed by stop(), guarded by this
+	private final HashSet<Socket> mClientSockets = new HashSet<Socket>();
+
+	// newest encoded frame, guarded by this
+	private byte[] mJpeg = new byte[0];
+	private int mJpegLength;
+	private long mJpegSeq;
+
+	// metrics, guarded by this
+	private long mEncoded;
+	private long mDropped;
+	private long mTotalEncodeNanos;
+	private long mTotalBytes;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public MjpegStreamer(int port, int quality, int fps) {
+		mPort = port;
+		setQuality(quality);
+		setFrameRate(fps);
+		for (int i = 0; i < POOL_SIZE; i++) mFree.add(new Frame());
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public void setQuality(int quality) {
+		mQuality = Math.max(1, Math.min(quality, 100));
+	}
+
+	public void setFrameRate(int fps) {
+		mFrameIntervalNs = 1000000000L / Math.max(1, fps);
+	}
+
+	public boolean isRunning() {
+		return mRunning;
+	}
+
+	public synchronized String getReport() {
+		if (mEncoded == 0) return "stream: " + mDropped + " dropped, " + mClients.get() + " clients";
+		return "stream: " + mEncoded + " frames, encode " + mTotalEncodeNanos / mEncoded / 1000
+			+ "us, " + mTotalBytes / mEncoded + " bytes/frame, " + mDropped + " dropped, "
+			+ mClients.get() + " clients";
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Set the preview size, must be called before the first frame and
+	 * whenever the preview size changes. Runs on the camera thread.
+	 */
+	public void configure(int width, int height) {
+		mHeight = height;
+		mWidth = width;
+	}
+
+	public synchronized void start() {
+		if (mRunning) return;
+		try {
+			// getLoopbackAddress() needs API 19
+			mServerSocket = new ServerSocket(mPort, 0, InetAddress.getByName("127.0.0.1"));
+		} catch (IOException e) {
+			Log.e(TAG, "could not listen on port " + mPort, e);
+			return;
+		}
+		mRunning = true;
+		mEncoderThread = new Thread(mEncoder, "MjpegEncoder");
+		mEncoderThread.start();
+		mAcceptThread = new Thread(mAcceptor, "MjpegAccept");
+		mAcceptThread.start();
+		Log.i(TAG, "streaming on port " + mPort);
+	}
+
+	public synchronized void stop() {
+		if (!mRunning) return;
+		mRunning = false;
+		try {
+			mServerSocket.close();
+		} catch (IOException e) {
+			Log.e(TAG, "close() of server socket failed", e);
+		}
+		mEncoderThread.interrupt();
+		// clients blocked in write() are only woken by closing their socket
+		for (Socket socket : mClientSockets) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				Log.e(TAG, "close() of client socket failed", e);
+			}
+		}
+		mClientSockets.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Hand a preview frame to the encoder. Copies the frame, so the
+	 * caller can recycle the buffer right away. Runs on the camera thread.
+	 */
+	public void offerFrame(byte[] data) {
+		int width = mWidth;
+		int height = mHeight;
+		if (!mRunning || mClients.get() == 0 || width == 0) return;
+
+		long now = System.nanoTime();
+		if (now - mLastOffer < mFrameIntervalNs) return;
+		mLastOffer = now;
+
+		Frame frame = mFree.poll();
+		if (frame == null) {
+			// encoder still busy - drop rather than build up latency
+			synchronized (this) {
+				mDropped++;
+			}
+			Trace.event(Trace.EV_JPEG_DROP, 0, 0);
+			return;
+		}
+		if (frame.width != width || frame.height != height) frame.resize(width, height);
+		System.arraycopy(data, 0, frame.data, 0, Math.min(data.length, frame.data.length));
+		mFilled.offer(frame);
+	}
+
+	private final Runnable mEncoder = new Runnable() {
+		public void run() {
+			JpegStream jpeg = new JpegStream();
+			while (mRunning) {
+				Frame frame;
+				try {
+					frame = mFilled.take();
+				} catch (InterruptedException e) {
+					break;
+				}
+
+				long start = System.nanoTime();
+				jpeg.reset();
+				frame.image.compressToJpeg(frame.rect, mQuality, jpeg);
+				long elapsed = System.nanoTime() - start;
+				mFree.offer(frame);
+
+				synchronized (MjpegStreamer.this) {
+					if (mJpeg.length < jpeg.size()) mJpeg = new byte[jpeg.size() * 2];
+					System.arraycopy(jpeg.buffer(), 0, mJpeg, 0, jpeg.size());
+					mJpegLength = jpeg.size();
+					mJpegSeq++;
+					mEncoded++;
+					mTotalEncodeNanos += elapsed;
+					mTotalBytes += jpeg.size();
+					MjpegStreamer.this.notifyAll();
+				}
+				Trace.event(Trace.EV_JPEG, jpeg.size(), (int) (elapsed / 1000));
+			}
+		}
+	};
+
+	private final Runnable mAcceptor = new Runnable() {
+		public void run() {
+			while (mRunning) {
+				try {
+					Socket socket = mServerSocket.accept();
+					synchronized (MjpegStreamer.this) {
+						if (!mRunning) {
+							socket.close();
+							break;
+						}
+						mClientSockets.add(socket);
+					}
+					socket.setTcpNoDelay(true);
+					new ClientThread(socket).start();
+				} catch (IOException e) {
+					if (mRunning) Log.e(TAG, "accept() failed", e);
+				}
+			}
+		}
+	};
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	// only touched by whoever took it from a queue
+	private static class Frame {
+		byte[] data = new byte[0];
+		YuvImage image;
+		Rect rect;
+		int width;
+		int height;
+
+		void resize(int width, int height) {
+			int size = width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+			if (data.length != size) data = new byte[size];
+			image = new YuvImage(data, ImageFormat.NV21, width, height, null);
+			rect = new Rect(0, 0, width, height);
+			this.width = width;
+			this.height = height;
+		}
+	}
+
+	// gives access to the internal buffer, avoids a copy per frame
+	private static class JpegStream extends ByteArrayOutputStream {
+		JpegStream() {
+			super(64 * 1024);
+		}
+
+		byte[] buffer() {
+			return buf;
+		}
+	}
+
+	private class ClientThread extends Thread {
+		private final Socket mmSocket;
+		private byte[] mmJpeg = new byte[0];
+
+		ClientThread(Socket socket) {
+			super("MjpegClient");
+			mmSocket = socket;
+		}
+
+		public void run() {
+			mClients.incrementAndGet();
+			Log.i(TAG, "client connected: " + mmSocket.getInetAddress());
+			try {
+				OutputStream out = mmSocket.getOutputStream();
+				out.write(("HTTP/1.0 200 OK\r\n"
+						+ "Cache-Control: no-cache\r\n"
+						+ "Connection: close\r\n"
+						+ "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n\r\n").getBytes());
+
+				long seq = 0;
+				while (mRunning) {
+					int length;
+					synchronized (MjpegStreamer.this) {
+						// always take the newest frame, skipping any we missed
+						while (mRunning && mJpegSeq == seq) MjpegStreamer.this.wait();
+						if (!mRunning) break;
+						seq = mJpegSeq;
+						length = mJpegLength;
+						if (mmJpeg.length < length) mmJpeg = new byte[mJpeg.length];
+						System.arraycopy(mJpeg, 0, mmJpeg, 0, length);
+					}
+					out.write(("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: "
+							+ length + "\r\n\r\n").getBytes());
+					out.write(mmJpeg, 0, length);
+					out.write("\r\n".getBytes());
+					out.flush();
+				}
+			} catch (IOException e) {
+				Log.d(TAG, "client gone: " + e);
+			} catch (InterruptedException e) {
+				Log.d(TAG, "client interrupted");
+			} finally {
+				mClients.decrementAndGet();
+				synchronized (MjpegStreamer.this) {
+					mClientSockets.remove(mmSocket);
+				}
+				try {
+					mmSocket.close();
+				} catch (IOException e) {
+					Log.e(TAG, "close() of client socket failed", e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import android.graphics.Rect;
+
+
+/**
+ * Fallback target for when face detection loses the face (side profile,
+ * bad light). Differences consecutive preview frames on a downsampled
+ * luma (Y) plane and reports centroid and bounding box of what moved, in
+ * the same -1000..1000 coordinates Camera.Face uses.
+ *
+ * All buffers are allocated in configure(), process() does not allocate.
+ * process() runs on the camera thread, getTarget() on the UI thread. The
+ * work can be split into stripes with a FrameProcessor.
+ */
+public class MotionTracker implements FrameProcessor.StripeTask {
+
+	// the luma plane is sampled down to about this many cells across
+	private static final int GRID_WIDTH = 80;
+
+	// luma change that counts as motion, filters sensor noise
+	private static final int DIFF_THRESHOLD = 24;
+
+	// minimum share of the grid that must move, in 1/1000
+	private static final int MIN_MOTION_PERMILLE = 4;
+
+	// a motion target is only used for this long after the frame
+	private static final long TARGET_TIMEOUT_MS = 500;
+
+	private int mWidth;
+	private int mHeight;
+	private int mStep;
+	private int mGridWidth;
+	private int mGridHeight;
+	private byte[] mPrevious;
+	private boolean mPrimed;
+	private long mStart;
+
+	// partial results, one slot per stripe
+	private final int[] mCells = new int[FrameProcessor.MAX_STRIPES];
+	private final long[] mSumX = new long[FrameProcessor.MAX_STRIPES];
+	private final long[] mSumY = new long[FrameProcessor.MAX_STRIPES];
+	private final int[] mMinX = new int[FrameProcessor.MAX_STRIPES];
+	private final int[] mMinY = new int[FrameProcessor.MAX_STRIPES];
+	private final int[] mMaxX = new int[FrameProcessor.MAX_STRIPES];
+	private final int[] mMaxY = new int[FrameProcessor.MAX_STRIPES];
+
+	// last result, guarded by this
+	private final Rect mTarget = new Rect();
+	private int mTargetX;
+	private int mTargetY;
+	private int mTargetCells;
+	private long mTargetTime;
+
+	// per-frame cost
+	private long mFrames;
+	private long mTotalNanos;
+	private long mLastNanos;
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * Copy the current motion bounding box into out.
+	 *
+	 * @return false if there was no motion recently
+	 */
+	public synchronized boolean getTarget(Rect out) {
+		if (mTargetCells == 0 || System.currentTimeMillis() - mTargetTime > TARGET_TIMEOUT_MS) return false;
+		out.set(mTarget);
+		return true;
+	}
+
+	public synchronized int getTargetX() {
+		return mTargetX;
+	}
+
+	public synchronized int getTargetY() {
+		return mTargetY;
+	}
+
+	public synchronized long getAvgFrameUs() {
+		return (mFrames == 0) ? 0 : mTotalNanos / mFrames / 1000;
+	}
+
+	public synchronized long getLastFrameUs() {
+		return mLastNanos / 1000;
+	}
+
+	public String getReport() {
+		return "motion: " + getAvgFrameUs() + "us/frame avg, last " + getLastFrameUs() + "us";
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Set the preview size, must be called before the first frame and
+	 * whenever the preview size changes.
+	 */
+	public synchronized void configure(int width, int height) {
+		mWidth = width;
+		mHeight = height;
+		mStep = Math.max(1, width / GRID_WIDTH);
+		mGridWidth = width / mStep;
+		mGridHeight = height / mStep;
+		mPrevious = new byte[mGridWidth * mGridHeight];
+		mPrimed = false;
+		mTargetCells = 0;
+	}
+
+	/**
+	 * Forget the previous frame and the target, e.g. after a camera
+	 * switch, so the new camera's first frame is not compared with the
+	 * old camera's last one.
+	 */
+	public synchronized void reset() {
+		mPrimed = false;
+		mTargetCells = 0;
+	}
+
+	/**
+	 * Process one NV21 preview frame on the calling thread. Only the Y
+	 * plane (the first width * height bytes) is read.
+	 */
+	public void process(byte[] frame) {
+		begin(frame, 1);
+		processStripe(frame, 0, 0, mGridHeight);
+		merge(1);
+	}
+
+	@Override
+	public int getRows() {
+		return mGridHeight;
+	}
+
+	@Override
+	public void begin(byte[] frame, int stripes) {
+		mStart = System.nanoTime();
+	}
+
+	@Override
+	public void processStripe(byte[] frame, int stripe, int rowStart, int rowEnd) {
+		final byte[] previous = mPrevious;
+		final int step = mStep;
+		final int width = mWidth;
+		final int gridWidth = mGridWidth;
+
+		int cells = 0;
+		long sumX = 0;
+		long sumY = 0;
+		int minX = gridWidth, minY = mGridHeight, maxX = -1, maxY = -1;
+
+		for (int gy = rowStart; gy < rowEnd; gy++) {
+			int row = (gy * step + step / 2) * width + step / 2;
+			int cell = gy * gridWidth;
+			for (int gx = 0; gx < gridWidth; gx++, cell++) {
+				int luma = frame[row + gx * step] & 0xff;
+				int diff = luma - (previous[cell] & 0xff);
+				previous[cell] = (byte) luma;
+				if (diff > DIFF_THRESHOLD || diff < -DIFF_THRESHOLD) {
+					cells++;
+					sumX += gx;
+					sumY += gy;
+					if (gx < minX) minX = gx;
+					if (gx > maxX) maxX = gx;
+					if (gy < minY) minY = gy;
+					if (gy > maxY) maxY = gy;
+				}
+			}
+		}
+
+		mCells[stripe] = cells;
+		mSumX[stripe] = sumX;
+		mSumY[stripe] = sumY;
+		mMinX[stripe] = minX;
+		mMinY[stripe] = minY;
+		mMaxX[stripe] = maxX;
+		mMaxY[stripe] = maxY;
+	}
+
+	@Override
+	public void merge(int stripes) {
+		final int gridWidth = mGridWidth;
+		final int gridHeight = mGridHeight;
+
+		int cells = 0;
+		long sumX = 0;
+		long sumY = 0;
+		int minX = gridWidth, minY = gridHeight, maxX = -1, maxY = -1;
+		for (int i = 0; i < stripes; i++) {
+			if (mCells[i] == 0) continue;
+			cells += mCells[i];
+			sumX += mSumX[i];
+			sumY += mSumY[i];
+			minX = Math.min(minX, mMinX[i]);
+			minY = Math.min(minY, mMinY[i]);
+			maxX = Math.max(maxX, mMaxX[i]);
+			maxY = Math.max(maxY, mMaxY[i]);
+		}
+
+		long elapsed = System.nanoTime() - mStart;
+		synchronized (this) {
+			mFrames++;
+			mTotalNanos += elapsed;
+			mLastNanos = elapsed;
+
+			// the first frame after configure() has nothing to compare with
+			if (!mPrimed) {
+				mPrimed = true;
+				return;
+			}
+			if (cells * 1000 < MIN_MOTION_PERMILLE * gridWidth * gridHeight) return;
+
+			mTargetCells = cells;
+			mTargetX = toCamera(sumX / cells, gridWidth);
+			mTargetY = toCamera(sumY / cells, gridHeight);
+			mTarget.set(toCamera(minX, gridWidth), toCamera(minY, gridHeight),
+					toCamera(maxX + 1, gridWidth), toCamera(maxY + 1, gridHeight));
+			mTargetTime = System.currentTimeMillis();
+		}
+		Trace.event(Trace.EV_MOTION, cells, (int) (elapsed / 1000));
+	}
+
+	// grid cell to -1000..1000 camera coordinates
+	private static int toCamera(long cell, int cells) {
+		return (int) (cell * 2000 / cells) - 1000;
+	}
+}
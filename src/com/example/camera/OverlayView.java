@@ -0,0 +1,219 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+import android.graphics.Path;
+import android.graphics.PixelFormat;
+import android.graphics.PorterDuff;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+
+/**
+ * Transparent layer above the camera preview for the face rectangles and
+ * the status line. Drawing happens on its own render thread with
+ * lockCanvas(), so neither the preview nor the UI thread wait for it.
+ * setContent() only hands over the new content; if it is the same as
+ * what is on screen, nothing is drawn at all. All rectangles go into one
+ * path and are drawn with a single call.
+ */
+public class OverlayView extends SurfaceView implements SurfaceHolder.Callback {
+	// Debugging
+	private static final String TAG = "OverlayView";
+
+	public static final int MAX_RECTS = 16;
+
+	private static final int TEXT_SIZE = 30;
+
+	// the latest content, guarded by this
+	private final int[] mRects = new int[4 * MAX_RECTS];
+	private int mCount;
+	private String mText = "";
+	private int mColor;
+	private boolean mDirty;
+	private Thread mThread;
+
+	// render thread only
+	private final int[] mDrawRects = new int[4 * MAX_RECTS];
+	private String mDrawText;
+	private final Path mPath = new Path();
+	private final Paint mRectPaint = new Paint();
+	private final Paint mTextPaint = new Paint();
+	private final Paint mBoxPaint = new Paint();
+
+	// statistics, guarded by this
+	private long mUpdates;
+	private long mFrames;
+	private long mRenderNanos;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public OverlayView(Context context) {
+		super(context);
+		setZOrderMediaOverlay(true);
+		getHolder().setFormat(PixelFormat.TRANSPARENT);
+		getHolder().addCallback(this);
+
+		mRectPaint.setStrokeWidth(20);
+		mRectPaint.setStyle(Style.STROKE);
+		mTextPaint.setTextSize(TEXT_SIZE);
+		mTextPaint.setColor(0xffffffff);
+		mBoxPaint.setColor(0x77000000);
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public synchronized String getReport() {
+		return "overlay: " + mUpdates + " updates, " + mFrames + " drawn, avg "
+			+ (mFrames == 0 ? 0 : mRenderNanos / mFrames / 1000) + "us per frame";
+	}
+
+	/**
+	 * Show new content, from any thread. Returns at once, the render
+	 * thread draws it unless it is what is shown already.
+	 *
+	 * @param text status line at the bottom
+	 * @param rects left, top, right, bottom in view pixels for each rect
+	 * @param count number of rects, at most MAX_RECTS
+	 * @param color stroke color of the rects
+	 */
+	public synchronized void setContent(String text, int[] rects, int count, int color) {
+		mUpdates++;
+		count = Math.min(count, MAX_RECTS);
+		if (!mDirty && count == mCount && color == mColor && text.equals(mText)
+				&& equals(rects, mRects, 4 * count)) {
+			return;
+		}
+		System.arraycopy(rects, 0, mRects, 0, 4 * count);
+		mCount = count;
+		mText = text;
+		mColor = color;
+		mDirty = true;
+		notifyAll();
+	}
+
+	private static boolean equals(int[] a, int[] b, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[i] != b[i]) return false;
+		}
+		return true;
+	}
+
+	// ===========================================================
+	// Methods from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public void surfaceCreated(SurfaceHolder holder) {
+		synchronized (this) {
+			mDirty = true;
+			mThread = new Thread(mRenderer, TAG);
+			mThread.start();
+		}
+	}
+
+	@Override
+	public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+		synchronized (this) {
+			mDirty = true;
+			notifyAll();
+		}
+	}
+
+	@Override
+	public void surfaceDestroyed(SurfaceHolder holder) {
+		// the render thread must be done with the surface before we return
+		Thread thread;
+		synchronized (this) {
+			thread = mThread;
+			mThread = null;
+			notifyAll();
+		}
+		if (thread == null) return;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	// wait for new content and copy it for drawing, false when stopped
+	private synchronized boolean awaitContent(Thread self) throws InterruptedException {
+		while (mThread == self && !mDirty) wait();
+		if (mThread != self) return false;
+		mDirty = false;
+		System.arraycopy(mRects, 0, mDrawRects, 0, 4 * mCount);
+		mDrawText = mText;
+		mPath.rewind();
+		for (int i = 0; i < mCount; i++) {
+			int r = 4 * i;
+			mPath.addRect(mDrawRects[r], mDrawRects[r + 1], mDrawRects[r + 2], mDrawRects[r + 3], Path.Direction.CW);
+		}
+		mRectPaint.setColor(mColor);
+		return true;
+	}
+
+	private void render(SurfaceHolder holder) {
+		long start = System.nanoTime();
+		Canvas canvas = holder.lockCanvas();
+		if (canvas == null) return;
+		try {
+			canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+			canvas.drawPath(mPath, mRectPaint);
+
+			int height = canvas.getHeight();
+			float textWidth = mTextPaint.measureText(mDrawText);
+			canvas.drawRect(0, height - (TEXT_SIZE + 15), textWidth + 40, height, mBoxPaint);
+			canvas.drawText(mDrawText, 20, height - 10, mTextPaint);
+		} finally {
+			holder.unlockCanvasAndPost(canvas);
+		}
+		synchronized (this) {
+			mFrames++;
+			mRenderNanos += System.nanoTime() - start;
+		}
+	}
+
+	private final Runnable mRenderer = new Runnable() {
+		public void run() {
+			Thread self = Thread.currentThread();
+			SurfaceHolder holder = getHolder();
+			try {
+				while (awaitContent(self)) render(holder);
+			} catch (InterruptedException e) {
+				Log.d(TAG, "render thread interrupted");
+			}
+		}
+	};
+}
@@ -0,0 +1,177 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/**
+ * Saves battery while nobody is around. After a while without a target
+ * the tracker goes idle: the listener lowers the preview frame rate and
+ * dims the screen, only every IDLE_FRAME_STRIDE-th preview frame and
+ * empty face detection result is processed and steering commands go out
+ * at a lower rate. The first
+ * detection or PROXIMITY event switches back to full rate at once.
+ *
+ * Counts frames and commands per mode, so the effect can be read off as
+ * frames processed per minute.
+ */
+public class PowerGovernor {
+
+	public interface Listener {
+		/** called on the thread that caused the change */
+		void onPowerModeChanged(boolean idle);
+	}
+
+	public static final long DEFAULT_IDLE_AFTER_MS = 10000;
+
+	// in idle mode only every n-th preview frame is processed
+	private static final int IDLE_FRAME_STRIDE = 4;
+
+	// time between steering commands
+	private static final long FULL_COMMAND_INTERVAL_MS = 150;
+	private static final long IDLE_COMMAND_INTERVAL_MS = 1000;
+
+	private static final int FULL = 0;
+	private static final int IDLE = 1;
+
+	private final Listener mListener;
+	private final long mIdleAfterMs;
+
+	// guarded by this
+	private int mMode = FULL;
+	private long mLastActivity;
+	private long mModeSince;
+	private int mFrameCount;
+	private int mDetectionCount;
+
+	// statistics per mode, guarded by this
+	private final long[] mTimeInMode = new long[2];
+	private final long[] mFramesSeen = new long[2];
+	private final long[] mFramesProcessed = new long[2];
+	private final long[] mCommands = new long[2];
+	private long mWakeups;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public PowerGovernor(Listener listener, long idleAfterMs) {
+		mListener = listener;
+		mIdleAfterMs = idleAfterMs;
+		mLastActivity = System.currentTimeMillis();
+		mModeSince = mLastActivity;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public synchronized boolean isIdle() {
+		return mMode == IDLE;
+	}
+
+	public synchronized long getCommandIntervalMs() {
+		return (mMode == IDLE) ? IDLE_COMMAND_INTERVAL_MS : FULL_COMMAND_INTERVAL_MS;
+	}
+
+	public synchronized String getReport() {
+		long now = System.currentTimeMillis();
+		long full = mTimeInMode[FULL] + ((mMode == FULL) ? now - mModeSince : 0);
+		long idle = mTimeInMode[IDLE] + ((mMode == IDLE) ? now - mModeSince : 0);
+		return "power: " + (mMode == IDLE ? "idle" : "full") + ", idle " + percent(idle, full + idle)
+			+ "% of " + (full + idle) / 60000 + "min, " + mWakeups + " wakeups"
+			+ "\n  full: " + perMinute(mFramesSeen[FULL], full) + " frames/min, "
+			+ perMinute(mFramesProcessed[FULL], full) + " processed/min, "
+			+ perMinute(mCommands[FULL], full) + " commands/min"
+			+ "\n  idle: " + perMinute(mFramesSeen[IDLE], idle) + " frames/min, "
+			+ perMinute(mFramesProcessed[IDLE], idle) + " processed/min, "
+			+ perMinute(mCommands[IDLE], idle) + " commands/min";
+	}
+
+	private static long perMinute(long count, long ms) {
+		return (ms == 0) ? 0 : count * 60000 / ms;
+	}
+
+	private static long percent(long part, long total) {
+		return (total == 0) ? 0 : part * 100 / total;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Count a preview frame and go idle if nothing happened for a while.
+	 * Called on the camera thread for every frame.
+	 *
+	 * @return whether the frame should be processed
+	 */
+	public boolean onFrame(long now) {
+		boolean changed = false;
+		boolean process;
+		synchronized (this) {
+			if (mMode == FULL && now - mLastActivity > mIdleAfterMs) {
+				setMode(IDLE, now);
+				changed = true;
+			}
+			mFramesSeen[mMode]++;
+			process = (mMode == FULL) || (mFrameCount++ % IDLE_FRAME_STRIDE == 0);
+			if (process) mFramesProcessed[mMode]++;
+		}
+		if (changed) mListener.onPowerModeChanged(true);
+		return process;
+	}
+
+	/**
+	 * Thin out empty face detection results while idle, the way onFrame()
+	 * does for preview frames; a result with faces always goes through.
+	 * Called on the camera thread.
+	 *
+	 * @return whether the result should be handed on to steering
+	 */
+	public synchronized boolean onDetection(boolean found) {
+		if (found || mMode == FULL) return true;
+		return mDetectionCount++ % IDLE_FRAME_STRIDE == 0;
+	}
+
+	/**
+	 * A target was detected or the robot reported PROXIMITY, back to full
+	 * rate right away.
+	 */
+	public void onActivity(long now) {
+		synchronized (this) {
+			mLastActivity = now;
+			if (mMode == FULL) return;
+			setMode(FULL, now);
+			mWakeups++;
+		}
+		mListener.onPowerModeChanged(false);
+	}
+
+	public synchronized void onCommand() {
+		mCommands[mMode]++;
+	}
+
+	private void setMode(int mode, long now) {
+		mTimeInMode[mMode] += now - mModeSince;
+		mModeSince = now;
+		mMode = mode;
+		mFrameCount = 0;
+		mDetectionCount = 0;
+	}
+}
@@ -0,0 +1,168 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/**
+ * Decides where to look when the target is gone. Remembers where the
+ * target was last seen and how fast it moved across the screen, and
+ * first turns towards the side it most likely left by ("search,left" or
+ * "search,right"). If it does not show up there, sweeps back and forth
+ * with every leg longer than the one before, starting the other way.
+ * After MAX_SWEEP_LEGS legs it gives up and leaves the search to the
+ * robot with a plain "search".
+ *
+ * The direction field needs robot firmware that parses it, which is not
+ * released yet, so directional search is off by default and only the
+ * plain "search" is sent, as before (menu "Directional search").
+ *
+ * Positions are screen horizontal, -1000 (left) to 1000 (right), as
+ * computed in draw(). All times are passed in, so the planner can be
+ * driven by a simulated clock.
+ */
+public class ReacquisitionPlanner {
+
+	public static final int PHASE_TRACKING = 0;
+	public static final int PHASE_DIRECTIONAL = 1;
+	public static final int PHASE_SWEEP = 2;
+	public static final int PHASE_GIVEN_UP = 3;
+
+	private static final String[] PHASE_NAMES = {
+		"tracking", "directional", "sweep", "given up"
+	};
+
+	// turn towards the exit side this long before sweeping
+	private static final long DIRECTIONAL_MS = 1500;
+	// sweep leg i lasts (i + 2) * SWEEP_LEG_MS, so each leg passes the
+	// point the search started from
+	private static final long SWEEP_LEG_MS = 1000;
+	private static final int MAX_SWEEP_LEGS = 4;
+
+	// where the target is expected after this long, decides the side
+	private static final long LOOKAHEAD_MS = 300;
+	// samples further apart say nothing about the velocity
+	private static final long MAX_SAMPLE_GAP_MS = 500;
+
+	// guarded by this
+	private boolean mDirectional;
+	private int mPhase = PHASE_TRACKING;
+	private boolean mSeen;
+	private int mLastPos;
+	private long mLastSeen;
+	private float mVelocity;  // screen units per ms
+	private long mLostSince;
+	private boolean mLeft;
+	private int mLeg;
+	private long mLegStart;
+
+	// statistics, guarded by this
+	private final LatencyHistogram mReacquireTimes = new LatencyHistogram();
+	private final long[] mFoundIn = new long[PHASE_NAMES.length];
+	private long mLost;
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public synchronized void setDirectional(boolean directional) {
+		mDirectional = directional;
+	}
+
+	public synchronized boolean isDirectional() {
+		return mDirectional;
+	}
+
+	public synchronized int getPhase() {
+		return mPhase;
+	}
+
+	public synchronized String getReport() {
+		return "reacquire: " + mLost + " lost, found " + mFoundIn[PHASE_DIRECTIONAL] + " directional, "
+			+ mFoundIn[PHASE_SWEEP] + " sweeping, " + mFoundIn[PHASE_GIVEN_UP] + " after giving up, "
+			+ mReacquireTimes;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * The target is in view at the given screen position, call for every
+	 * frame it is seen in.
+	 */
+	public synchronized void onTarget(int horizontalPos, long now) {
+		if (mPhase != PHASE_TRACKING) {
+			long elapsed = now - mLostSince;
+			mReacquireTimes.record(elapsed);
+			mFoundIn[mPhase]++;
+			Trace.event(Trace.EV_REACQUIRED, mPhase, (int) elapsed);
+			mPhase = PHASE_TRACKING;
+			// the old velocity is from before the search turned the robot
+			mSeen = false;
+		}
+
+		long dt = now - mLastSeen;
+		if (!mSeen || dt > MAX_SAMPLE_GAP_MS) {
+			mVelocity = 0;
+		} else if (dt > 0) {
+			float velocity = (float) (horizontalPos - mLastPos) / dt;
+			mVelocity = (mVelocity + velocity) / 2;
+		}
+		mSeen = true;
+		mLastPos = horizontalPos;
+		mLastSeen = now;
+	}
+
+	/**
+	 * The target is not in view and a steering command is due.
+	 *
+	 * @return the search command to send, with trailing newline
+	 */
+	public synchronized String nextCommand(long now) {
+		if (mPhase == PHASE_TRACKING) {
+			if (!mSeen) return "search\n";
+			mLost++;
+			mLostSince = now;
+			// without directional search the robot's own search starts
+			// right away, counted as given up
+			mPhase = mDirectional ? PHASE_DIRECTIONAL : PHASE_GIVEN_UP;
+			mLeft = mLastPos + mVelocity * LOOKAHEAD_MS < 0;
+		}
+
+		if (mPhase == PHASE_DIRECTIONAL && now - mLostSince >= DIRECTIONAL_MS) {
+			mPhase = PHASE_SWEEP;
+			mLeg = 0;
+			mLegStart = now;
+			mLeft = !mLeft;
+		}
+
+		while (mPhase == PHASE_SWEEP && now - mLegStart >= (mLeg + 2) * SWEEP_LEG_MS) {
+			mLegStart += (mLeg + 2) * SWEEP_LEG_MS;
+			mLeft = !mLeft;
+			if (++mLeg == MAX_SWEEP_LEGS) mPhase = PHASE_GIVEN_UP;
+		}
+
+		if (mPhase == PHASE_GIVEN_UP) return "search\n";
+		return mLeft ? "search,left\n" : "search,right\n";
+	}
+
+	public static String phaseName(int phase) {
+		return PHASE_NAMES[phase];
+	}
+}
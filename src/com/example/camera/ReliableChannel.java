@@ -0,0 +1,304 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * Acknowledged delivery of critical commands ("norelais,", "nolight,")
+ * on top of the plain RFCOMM link.
+ *
+ * A command gets a sequence number as an extra last field,
+ * "norelais,#12\n", and the robot answers "ACK,12". Unacknowledged
+ * commands are sent again after a retransmission timeout that follows
+ * the measured round trip time (Jacobson/Karels, with Karn's rule: no
+ * samples from retransmitted commands, back off on timeouts). After a
+ * reconnect everything still pending is sent again with its old number,
+ * so the robot must remember the last numbers it executed, acknowledge
+ * a repeat again and not execute it twice. Numbering starts at a random
+ * value, so a restarted app does not reuse numbers the robot still
+ * remembers.
+ *
+ * Firmware that does not know the extra field still executes the
+ * command, but will see it up to MAX_RETRIES more times.
+ */
+public class ReliableChannel {
+	// Debugging
+	private static final String TAG = "ReliableChannel";
+
+	public static final String ACK = "ACK,";
+
+	private static final long INITIAL_RTO_MS = 500;
+	private static final long MIN_RTO_MS = 100;
+	private static final long MAX_RTO_MS = 4000;
+	private static final int MAX_RETRIES = 6;
+
+	private final BluetoothService mService;
+	private final Handler mHandler;
+
+	// guarded by this
+	private final ArrayList<Pending> mPending = new ArrayList<Pending>();
+	private int mNextSeq = 1 + new Random().nextInt(1 << 20);
+	private long mSrtt = -1;
+	private long mRttVar;
+	private long mRto = INITIAL_RTO_MS;
+	private boolean mRunning;
+	// a timer thread left over from before a quick stop() / start() sees
+	// the generation changed and quits
+	private int mGeneration;
+
+	// statistics, guarded by this
+	private long mSent;
+	private long mAcked;
+	private long mRetransmits;
+	private long mFailed;
+	private long mDuplicateAcks;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param handler gets a toast when a command could not be delivered
+	 */
+	public ReliableChannel(BluetoothService service, Handler handler) {
+		mService = service;
+		mHandler = handler;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public synchronized long getRtoMs() {
+		return mRto;
+	}
+
+	public synchronized String getReport() {
+		return "reliable: " + mSent + " sent, " + mAcked + " acked, " + mRetransmits + " retransmits, "
+			+ mFailed + " failed, " + mDuplicateAcks + " duplicate acks, srtt " + mSrtt + "ms, rto " + mRto
+			+ "ms, " + mPending.size() + " pending";
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	public synchronized void start() {
+		if (mRunning) return;
+		mRunning = true;
+		new TimerThread(++mGeneration).start();
+	}
+
+	public synchronized void stop() {
+		mRunning = false;
+		mPending.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Number a command and send it, keeps it until it is acknowledged.
+	 *
+	 * @param command one command line, with or without trailing newline
+	 */
+	public void send(byte[] command) {
+		Pending pending;
+		synchronized (this) {
+			if (!mRunning) return;
+			pending = new Pending(mNextSeq++, command);
+			pending.sent = SystemClock.elapsedRealtime();
+			pending.timeout = mRto;
+			mPending.add(pending);
+			mSent++;
+			notifyAll();
+		}
+		mService.write(pending.data);
+	}
+
+	/**
+	 * Handle an "ACK,seq" line from the robot, called on the
+	 * communication thread.
+	 *
+	 * @return when the command was sent, if it was sent only once and so
+	 *         the ack is known to be for that copy, -1 otherwise
+	 */
+	public long onAck(String line) {
+		int seq;
+		try {
+			seq = Integer.parseInt(line.substring(ACK.length()).trim());
+		} catch (NumberFormatException e) {
+			Log.e(TAG, "bad ack: " + line);
+			return -1;
+		}
+
+		long now = SystemClock.elapsedRealtime();
+		synchronized (this) {
+			Pending pending = null;
+			for (int i = 0; i < mPending.size(); i++) {
+				if (mPending.get(i).seq == seq) {
+					pending = mPending.remove(i);
+					break;
+				}
+			}
+			if (pending == null) {
+				// ack for a repeat we already had an ack for
+				mDuplicateAcks++;
+				return -1;
+			}
+			mAcked++;
+
+			// Karn: an ack for a command sent more than once could belong to
+			// any of the copies, so it says nothing about the round trip
+			if (!pending.repeated) sampleRtt(now - pending.sent);
+			Trace.event(Trace.EV_ACK, seq, (int) (now - pending.sent));
+			return pending.repeated ? -1 : pending.sent;
+		}
+	}
+
+	/**
+	 * The link is back, send everything still pending again right away.
+	 * This is not a retransmission: the copies were lost with the link,
+	 * not to congestion, so no retry is counted and there is no backoff.
+	 */
+	public synchronized void onConnected() {
+		for (Pending pending : mPending) pending.resend = true;
+		notifyAll();
+	}
+
+	private void sampleRtt(long rtt) {
+		if (mSrtt < 0) {
+			mSrtt = rtt;
+			mRttVar = rtt / 2;
+		} else {
+			mRttVar = (3 * mRttVar + Math.abs(mSrtt - rtt)) / 4;
+			mSrtt = (7 * mSrtt + rtt) / 8;
+		}
+		mRto = Math.max(MIN_RTO_MS, Math.min(mSrtt + 4 * mRttVar, MAX_RTO_MS));
+	}
+
+	// collect what is due into due, or wait until something is
+	private synchronized boolean awaitDue(ArrayList<Pending> due, int generation) throws InterruptedException {
+		due.clear();
+		while (mRunning && generation == mGeneration) {
+			long now = SystemClock.elapsedRealtime();
+			long wait = 0;
+			boolean expired = false;
+			boolean connected = mService.getState() == BluetoothService.STATE_CONNECTED;
+			for (int i = 0; i < mPending.size(); i++) {
+				Pending pending = mPending.get(i);
+				long left = pending.sent + pending.timeout - now;
+				if (pending.resend && connected) {
+					pending.resend = false;
+					pending.repeated = true;
+					pending.sent = now;
+					pending.timeout = mRto;
+					due.add(pending);
+				} else if (left > 0) {
+					if (wait == 0 || left < wait) wait = left;
+				} else if (!connected) {
+					// no point counting retries while the link is down,
+					// onConnected() sends them
+					pending.sent = now;
+					if (wait == 0 || pending.timeout < wait) wait = pending.timeout;
+				} else if (pending.retries == MAX_RETRIES) {
+					mPending.remove(i--);
+					mFailed++;
+					giveUp(pending);
+				} else {
+					pending.retries++;
+					pending.repeated = true;
+					pending.sent = now;
+					pending.timeout = Math.min(pending.timeout * 2, MAX_RTO_MS);
+					expired = true;
+					mRetransmits++;
+					due.add(pending);
+					Trace.event(Trace.EV_RETRANSMIT, pending.seq, pending.retries);
+				}
+			}
+			// Karn: back off once per timer expiry, not once per command
+			if (expired) mRto = Math.min(mRto * 2, MAX_RTO_MS);
+			if (!due.isEmpty()) return true;
+			wait(wait);
+		}
+		return false;
+	}
+
+	private void giveUp(Pending pending) {
+		String command = new String(pending.data).trim();
+		Log.w(TAG, "no ack for " + command);
+		Message msg = mHandler.obtainMessage(CameraActivity.MESSAGE_TOAST);
+		Bundle bundle = new Bundle();
+		bundle.putString(CameraActivity.TOAST, "Robot did not confirm " + command);
+		msg.setData(bundle);
+		mHandler.sendMessage(msg);
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private class TimerThread extends Thread {
+		private final int mmGeneration;
+		private final ArrayList<Pending> mmDue = new ArrayList<Pending>();
+
+		TimerThread(int generation) {
+			super(TAG);
+			mmGeneration = generation;
+		}
+
+		public void run() {
+			try {
+				while (awaitDue(mmDue, mmGeneration)) {
+					// write outside the lock, acks keep coming in meanwhile
+					for (int i = 0; i < mmDue.size(); i++) mService.write(mmDue.get(i).data);
+				}
+			} catch (InterruptedException e) {
+				Log.d(TAG, "timer interrupted");
+			}
+		}
+	}
+
+	private static class Pending {
+		final int seq;
+		final byte[] data;
+		long sent;
+		long timeout;
+		int retries;
+		// sent again after a reconnect
+		boolean resend;
+		// more than one copy went out
+		boolean repeated;
+
+		Pending(int seq, byte[] command) {
+			this.seq = seq;
+			String line = new String(command).trim();
+			if (!line.endsWith(",")) line += ",";
+			data = (line + "#" + seq + "\n").getBytes();
+		}
+	}
+}
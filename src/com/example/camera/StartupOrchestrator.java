@@ -0,0 +1,161 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * Runs the cold start work in parallel and off the UI thread: the camera
+ * is opened on its own handler thread while the link to the last robot is
+ * restored by the BluetoothService connect thread. Each startup phase is
+ * timestamped relative to launch, so time-to-first-command can be tracked.
+ */
+public class StartupOrchestrator {
+	// Debugging
+	private static final String TAG = "StartupOrchestrator";
+
+	// Startup phases, in the order they usually complete
+	public static final int PHASE_CAMERA_OPEN     = 0;
+	public static final int PHASE_PREVIEW         = 1;
+	public static final int PHASE_FIRST_FACES     = 2;
+	public static final int PHASE_BT_CONNECTED    = 3;
+	public static final int PHASE_FIRST_COMMAND   = 4;
+	private static final int PHASE_COUNT          = 5;
+
+	private static final String[] PHASE_NAMES = {
+		"camera open", "preview", "first faces", "bt connected", "first command"
+	};
+
+	private final long mLaunchTime;
+	private final AtomicLongArray mPhaseTimes = new AtomicLongArray(PHASE_COUNT);
+	private final HandlerThread mCameraThread;
+	private final Handler mCameraHandler;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public StartupOrchestrator() {
+		mLaunchTime = SystemClock.elapsedRealtime();
+		mCameraThread = new HandlerThread("CameraThread");
+		mCameraThread.start();
+		mCameraHandler = new Handler(mCameraThread.getLooper());
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return ms from launch to the phase, or -1 if not reached yet
+	 */
+	public long getPhaseTime(int phase) {
+		long time = mPhaseTimes.get(phase);
+		return (time == 0) ? -1 : time - mLaunchTime;
+	}
+
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < PHASE_COUNT; i++) {
+			if (i > 0) sb.append(", ");
+			sb.append(PHASE_NAMES[i]).append(": ").append(getPhaseTime(i)).append("ms");
+		}
+		return sb.toString();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Record that a phase completed. Only the first call per phase counts.
+	 */
+	public void mark(int phase) {
+		long now = SystemClock.elapsedRealtime();
+		if (!mPhaseTimes.compareAndSet(phase, 0, now)) return;
+
+		Trace.event(Trace.EV_STARTUP, phase, (int) (now - mLaunchTime));
+		if (phase == PHASE_FIRST_COMMAND) Log.i(TAG, "startup done - " + getReport());
+	}
+
+	/**
+	 * Run camera work on the camera thread. Camera callbacks (faces,
+	 * preview frames) are delivered on this thread as well.
+	 */
+	public void runOnCameraThread(Runnable r) {
+		mCameraHandler.post(r);
+	}
+
+	/**
+	 * Run camera work on the camera thread and wait for it, used when the
+	 * caller must not return before the camera is done with a surface.
+	 * Runs inline once the camera thread has quit.
+	 */
+	public void runOnCameraThreadAndWait(final Runnable r) {
+		final CountDownLatch done = new CountDownLatch(1);
+		boolean posted = mCameraHandler.post(new Runnable() {
+			public void run() {
+				try {
+					r.run();
+				} finally {
+					done.countDown();
+				}
+			}
+		});
+		if (!posted) {
+			r.run();
+			return;
+		}
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Reconnect to the robot we were connected to last. The connect itself
+	 * runs on the BluetoothService connect thread.
+	 *
+	 * @return true if a reconnect was started
+	 */
+	public boolean restoreLink(BluetoothAdapter adapter, BluetoothService service, DeviceIndex index) {
+		DeviceIndex.Entry last = index.getLastConnected();
+		if (last == null || service.getState() != BluetoothService.STATE_NONE) return false;
+
+		Log.i(TAG, "restoring link to " + last.name + " " + last.address);
+		BluetoothDevice device = adapter.getRemoteDevice(last.address);
+		service.startConnectThread(device);
+		return true;
+	}
+
+	public void quit() {
+		mCameraThread.quit();
+	}
+}
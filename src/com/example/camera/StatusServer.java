@@ -0,0 +1,338 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+import android.os.Handler;
+import android.util.Log;
+
+
+/**
+ * Small line based status and control server. It only listens on the
+ * loopback interface, there is no authentication; reach it over USB with
+ * "adb forward tcp:8081 tcp:8081" and "nc localhost 8081". Understands:
+ *
+ *   status         snapshot of the tracker, ends with an empty line
+ *   send <command> hand one of COMMANDS to the robot, like sendMessage()
+ *   quit           close the connection
+ *
+ * All connections are served by one selector thread with non-blocking
+ * channels. The snapshot is taken from the Source on that thread, so it
+ * must only read volatile or briefly locked state. Injected commands are
+ * posted to the UI handler and never touch Bluetooth from here.
+ */
+public class StatusServer {
+	// Debugging
+	private static final String TAG = "StatusServer";
+
+	public static final int DEFAULT_PORT = 8081;
+
+	private static final int MAX_LINE = 256;
+	// a client that does not read its replies is dropped
+	private static final int MAX_PENDING_OUTPUT = 16 * 1024;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	// the discrete actions that may be sent, no steering or raw lines
+	private static final String[] COMMANDS = {
+		"light", "nolight", "dimlight", "play", "noplay", "relais", "norelais"
+	};
+
+	public interface Source {
+		/** @return current state, one "key: value" per line */
+		String getSnapshot();
+	}
+
+	private final int mPort;
+	private final Source mSource;
+	private final Handler mHandler;
+	private final int mInjectWhat;
+
+	// guarded by this
+	private ServerThread mThread;
+
+	// metrics, only written by the selector thread
+	private volatile int mClients;
+	private volatile long mRequests;
+	private volatile long mInjected;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param handler receives injected commands as message injectWhat,
+	 *        with the command string in obj
+	 */
+	public StatusServer(int port, Source source, Handler handler, int injectWhat) {
+		mPort = port;
+		mSource = source;
+		mHandler = handler;
+		mInjectWhat = injectWhat;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public synchronized boolean isRunning() {
+		return mThread != null;
+	}
+
+	public String getReport() {
+		return "control: " + mClients + " clients, " + mRequests + " requests, " + mInjected + " injected";
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	public synchronized void start() {
+		if (mThread != null) return;
+		Selector selector = null;
+		ServerSocketChannel serverChannel = null;
+		try {
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.configureBlocking(false);
+			serverChannel.socket().setReuseAddress(true);
+			// getLoopbackAddress() needs API 19
+			serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), mPort));
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			Log.e(TAG, "could not listen on port " + mPort, e);
+			close(selector, serverChannel);
+			return;
+		}
+		mThread = new ServerThread(selector, serverChannel);
+		mThread.start();
+		Log.i(TAG, "listening on port " + mPort);
+	}
+
+	/**
+	 * Does not wait for the selector thread, it closes all channels on
+	 * its way out.
+	 */
+	public synchronized void stop() {
+		if (mThread == null) return;
+		mThread.cancel();
+		mThread = null;
+	}
+
+	/**
+	 * @return false if the client is too far behind and must be dropped
+	 */
+	private boolean handle(String line, Connection connection) {
+		if (line.length() == 0) return true;
+		mRequests++;
+
+		String reply;
+		if (line.equals("status")) {
+			reply = mSource.getSnapshot() + "\n\n";
+		} else if (line.startsWith("send ")) {
+			String command = line.substring(5).trim();
+			if (command.endsWith(",")) command = command.substring(0, command.length() - 1);
+			if (isAllowed(command)) {
+				mHandler.obtainMessage(mInjectWhat, command + ",\n").sendToTarget();
+				mInjected++;
+				reply = "ok\n";
+			} else {
+				reply = "error: command not allowed\n";
+			}
+		} else if (line.equals("quit")) {
+			// close once the replies so far are out
+			connection.closing = true;
+			return true;
+		} else {
+			reply = "error: unknown request\n";
+		}
+		return connection.queue(reply);
+	}
+
+	private static boolean isAllowed(String command) {
+		for (String allowed : COMMANDS) {
+			if (allowed.equals(command)) return true;
+		}
+		return false;
+	}
+
+	private static void close(Selector selector, ServerSocketChannel serverChannel) {
+		try {
+			if (selector != null) {
+				for (SelectionKey key : selector.keys()) key.channel().close();
+				selector.close();
+			}
+			if (serverChannel != null) serverChannel.close();
+		} catch (IOException e) {
+			Log.e(TAG, "close() failed", e);
+		}
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private class ServerThread extends Thread {
+		private final Selector mmSelector;
+		private final ServerSocketChannel mmServerChannel;
+		private volatile boolean mmRunning = true;
+
+		ServerThread(Selector selector, ServerSocketChannel serverChannel) {
+			super("StatusServer");
+			mmSelector = selector;
+			mmServerChannel = serverChannel;
+		}
+
+		public void run() {
+			try {
+				while (mmRunning) {
+					mmSelector.select();
+					for (SelectionKey key : mmSelector.selectedKeys()) {
+						if (!key.isValid()) continue;
+						if (key.isAcceptable()) {
+							accept();
+							continue;
+						}
+						try {
+							if (key.isReadable()) read(key);
+							if (key.isValid() && key.isWritable()) write(key);
+						} catch (IOException e) {
+							disconnect(key);
+						}
+					}
+					mmSelector.selectedKeys().clear();
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "select() failed", e);
+			} finally {
+				close(mmSelector, mmServerChannel);
+				mClients = 0;
+			}
+		}
+
+		void cancel() {
+			mmRunning = false;
+			mmSelector.wakeup();
+		}
+
+		private void accept() {
+			SocketChannel channel = null;
+			try {
+				channel = mmServerChannel.accept();
+				if (channel == null) return;
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				channel.register(mmSelector, SelectionKey.OP_READ, new Connection());
+				mClients++;
+			} catch (IOException e) {
+				Log.e(TAG, "accept() failed", e);
+				try {
+					if (channel != null) channel.close();
+				} catch (IOException e2) {
+					Log.e(TAG, "close() of client channel failed", e2);
+				}
+			}
+		}
+
+		private void read(SelectionKey key) throws IOException {
+			Connection connection = (Connection) key.attachment();
+			ByteBuffer in = connection.in;
+			if (((SocketChannel) key.channel()).read(in) < 0) {
+				disconnect(key);
+				return;
+			}
+
+			// handle every complete line, keep the rest for the next read
+			in.flip();
+			int start = 0;
+			for (int i = 0; i < in.limit() && !connection.closing; i++) {
+				if (in.get(i) != '\n') continue;
+				String line = new String(in.array(), start, i - start, ASCII).trim();
+				start = i + 1;
+				if (!handle(line, connection)) {
+					disconnect(key);
+					return;
+				}
+			}
+			in.position(start);
+			in.compact();
+			if (!in.hasRemaining()) {
+				// no newline in MAX_LINE bytes
+				disconnect(key);
+				return;
+			}
+
+			if (connection.out.position() > 0) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			else if (connection.closing) disconnect(key);
+		}
+
+		private void write(SelectionKey key) throws IOException {
+			Connection connection = (Connection) key.attachment();
+			ByteBuffer out = connection.out;
+			out.flip();
+			((SocketChannel) key.channel()).write(out);
+			out.compact();
+			if (out.position() > 0) return;
+			if (connection.closing) disconnect(key);
+			else key.interestOps(SelectionKey.OP_READ);
+		}
+
+		private void disconnect(SelectionKey key) {
+			key.cancel();
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				Log.e(TAG, "close() of client channel failed", e);
+			}
+			mClients--;
+		}
+	}
+
+	private static class Connection {
+		final ByteBuffer in = ByteBuffer.allocate(MAX_LINE);
+		ByteBuffer out = ByteBuffer.allocate(1024);
+		boolean closing;
+
+		/**
+		 * @return false if the client is too far behind
+		 */
+		boolean queue(String reply) {
+			byte[] bytes = reply.getBytes(ASCII);
+			if (out.remaining() < bytes.length) {
+				if (out.position() + bytes.length > MAX_PENDING_OUTPUT) return false;
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes.length));
+				out.flip();
+				bigger.put(out);
+				out = bigger;
+			}
+			out.put(bytes);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/**
+ * All steering corrections of one control tick in one command, instead
+ * of one axis per tick ("left,", "up,", "forward," ...):
+ *
+ *   move,pan,tilt,dist
+ *
+ * pan is the horizontal target position (-1000 left .. 1000 right) and
+ * tilt the vertical one (-1000 top .. 1000 bottom), 0 when inside the
+ * dead band. dist is how far to drive in cm to reach the target
+ * distance, see DistanceEstimator: positive forward, negative back, 0 is
+ * fine. The robot applies all non-zero axes at once. A target centered
+ * on all axes is still sent as "okay,width,pan".
+ *
+ * Needs robot firmware that parses "move,", which is not released yet,
+ * so it is off by default (menu "Combined steering").
+ */
+public class SteeringCommand {
+
+	public static final String MOVE = "move,";
+
+	// dead bands in screen units, see SteeringController
+	public static final int PAN_DEADBAND = 300;
+	public static final int TILT_DEADBAND = 260;
+
+	public final int pan;
+	public final int tilt;
+	public final int distance;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public SteeringCommand(int pan, int tilt, int distance) {
+		this.pan = pan;
+		this.tilt = tilt;
+		this.distance = distance;
+	}
+
+	/**
+	 * @param horizontalPos target center, -1000 .. 1000
+	 * @param verticalPos target center, -1000 .. 1000
+	 * @param distanceCm correction from DistanceEstimator.getCorrectionCm()
+	 */
+	public static SteeringCommand fromTarget(int horizontalPos, int verticalPos, int distanceCm) {
+		int pan = (Math.abs(horizontalPos) > PAN_DEADBAND) ? horizontalPos : 0;
+		int tilt = (Math.abs(verticalPos) > TILT_DEADBAND) ? verticalPos : 0;
+		return new SteeringCommand(pan, tilt, distanceCm);
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/** @return true if no axis needs a correction */
+	public boolean isCentered() {
+		return pan == 0 && tilt == 0 && distance == 0;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/** @return the command line, with trailing newline */
+	public String encode() {
+		return MOVE + pan + "," + tilt + "," + distance + "\n";
+	}
+
+	/**
+	 * Parse a "move,pan,tilt,dist" line, what the robot does with it.
+	 *
+	 * @return null if the line is not a valid move command
+	 */
+	public static SteeringCommand decode(String line) {
+		line = line.trim();
+		if (!line.startsWith(MOVE)) return null;
+		String[] fields = line.substring(MOVE.length()).split(",");
+		if (fields.length != 3) return null;
+		try {
+			return new SteeringCommand(Integer.parseInt(fields[0].trim()), Integer.parseInt(fields[1].trim()),
+					Integer.parseInt(fields[2].trim()));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
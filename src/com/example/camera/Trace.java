@@ -0,0 +1,164 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+
+/**
+ * Tracing for the hot paths (drawing, face detection, bluetooth writes).
+ * Events are an id plus two ints, stored as binary records in a lock-free
+ * ring buffer. Nothing is formatted until dump() is called, so tracing can
+ * stay on without distorting the timing of the control loop.
+ */
+public final class Trace {
+	// Debugging
+	private static final String TAG = "Trace";
+
+	// Compile time switch - when false the body of event() is dead code
+	public static final boolean ENABLED = true;
+
+	// Event ids                                     a                b
+	public static final int EV_DRAW        = 1;   // scan             faces
+	public static final int EV_FACE        = 2;   // faceleft         allleft
+	public static final int EV_FACE_WIDTH  = 3;   // width            horizontalPos
+	public static final int EV_BT_WRITE    = 4;   // bytes            -
+	public static final int EV_STARTUP     = 5;   // phase            ms since launch
+	public static final int EV_CMD_SENT    = 6;   // priority         queue latency us
+	public static final int EV_CMD_DROPPED = 7;   // priority         age ms
+	public static final int EV_MOTION      = 8;   // moving cells     frame us
+	public static final int EV_BLOB        = 9;   // labels           largest blob cells
+	public static final int EV_JPEG        = 10;  // bytes            encode us
+	public static final int EV_JPEG_DROP   = 11;  // -                -
+	public static final int EV_ACK         = 12;  // seq              rtt ms
+	public static final int EV_RETRANSMIT  = 13;  // seq              retries
+	public static final int EV_LINK_DEAD   = 14;  // silent ms        misses
+	public static final int EV_CAM_SWITCH  = 15;  // camera id        ms to first frame
+	public static final int EV_REACQUIRED  = 16;  // search phase     ms lost
+	public static final int EV_SYNC        = 17;  // delay ms         offset since first sync ms
+
+	private static final String[] NAMES = {
+		"?", "draw", "face", "width", "bt_write", "startup",
+		"cmd_sent", "cmd_dropped", "motion", "blob", "jpeg", "jpeg_drop",
+		"ack", "retransmit", "link_dead", "camera_switch",
+		"reacquired", "sync"
+	};
+
+	// log level of each event, events below sLevel are not recorded; the
+	// per frame events are VERBOSE and off unless asked for
+	private static final int[] LEVELS = {
+		Log.VERBOSE, Log.VERBOSE, Log.VERBOSE, Log.DEBUG, Log.DEBUG, Log.INFO,
+		Log.DEBUG, Log.DEBUG, Log.VERBOSE, Log.VERBOSE, Log.VERBOSE, Log.DEBUG,
+		Log.DEBUG, Log.INFO, Log.WARN, Log.INFO, Log.INFO, Log.DEBUG
+	};
+
+	// Ring buffer, each record is {sequence, time, payload}
+	private static final int CAPACITY = 4096;  // must be a power of two
+	private static final int MASK = CAPACITY - 1;
+	private static final int RECORD = 3;
+	private static final long EMPTY = -1;
+
+	private static final AtomicLongArray sRing = new AtomicLongArray(CAPACITY * RECORD);
+	private static final AtomicLong sCursor = new AtomicLong();
+	private static final long sBase = System.nanoTime();
+	private static volatile int sLevel = Log.INFO;
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) sRing.set(i * RECORD, EMPTY);
+	}
+
+	private Trace() {
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public static void setLevel(int level) {
+		sLevel = level;
+	}
+
+	public static int getLevel() {
+		return sLevel;
+	}
+
+	public static boolean isLoggable(int id) {
+		return ENABLED && LEVELS[id] >= sLevel;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Record an event. Safe to call from any thread, never blocks and
+	 * never allocates.
+	 */
+	public static void event(int id, int a, int b) {
+		if (!ENABLED || LEVELS[id] < sLevel) return;
+
+		long seq = sCursor.getAndIncrement();
+		int slot = (int) (seq & MASK) * RECORD;
+
+		// invalidate the record first so a concurrent dump() skips it
+		sRing.set(slot, EMPTY);
+		sRing.lazySet(slot + 1, System.nanoTime() - sBase);
+		sRing.lazySet(slot + 2, ((long) id << 48) | ((a & 0xffffffL) << 24) | (b & 0xffffffL));
+		sRing.lazySet(slot, seq);
+	}
+
+	/**
+	 * Write the content of the ring to the log, oldest event first.
+	 * Records that are overwritten while dumping are skipped.
+	 *
+	 * @return number of events written
+	 */
+	public static int dump() {
+		long end = sCursor.get();
+		long seq = Math.max(0, end - CAPACITY);
+		int count = 0;
+
+		StringBuilder sb = new StringBuilder(64);
+		for (; seq < end; seq++) {
+			int slot = (int) (seq & MASK) * RECORD;
+			if (sRing.get(slot) != seq) continue;
+			long time = sRing.get(slot + 1);
+			long payload = sRing.get(slot + 2);
+			if (sRing.get(slot) != seq) continue;
+
+			int id = (int) (payload >>> 48);
+			int a = ((int) (payload >> 24)) << 8 >> 8;
+			int b = ((int) payload) << 8 >> 8;
+
+			sb.setLength(0);
+			int us = (int) (time / 1000 % 1000);
+			sb.append(time / 1000000).append('.')
+				.append(us < 100 ? (us < 10 ? "00" : "0") : "").append(us).append("ms ")
+				.append(id < NAMES.length ? NAMES[id] : "?")
+				.append(' ').append(a).append(' ').append(b);
+			Log.i(TAG, sb.toString());
+			count++;
+		}
+		return count;
+	}
+}
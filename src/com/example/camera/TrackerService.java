@@ -0,0 +1,205 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * Foreground service that owns the robot link: the BluetoothService with
+ * its reliable channel, heartbeat and clock sync, and the
+ * CommandScheduler. It outlives the activity, so the link and queued
+ * commands carry on while the recognizer is in front, the screen is off
+ * or the activity is recreated. The camera and steering stay in the
+ * activity, which binds to the service and submits its commands here:
+ * they need the preview surface, so tracking itself pauses while the
+ * activity is not in front, only the link carries on.
+ *
+ * Messages from the link are passed on to the bound activity's handler;
+ * while none is bound they are dropped, the link state is kept here.
+ */
+public class TrackerService extends Service {
+	// Debugging
+	private static final String TAG = "TrackerService";
+
+	private static final int NOTIFICATION_ID = 1;
+
+	private final IBinder mBinder = new LocalBinder();
+
+	private BluetoothService mBluetoothService;
+	private CommandScheduler mCommandScheduler;
+	private PowerManager.WakeLock mWakeLock;
+
+	// the bound activity's handler, or null
+	private volatile Handler mClient;
+
+	// link statistics and wake lock, guarded by this
+	private long mCreated;
+	private long mConnectedSince;
+	private long mConnectedTotal;
+	private long mLongestUp;
+	private int mConnects;
+	private int mDrops;
+	private int mBinds;
+	// late link messages must not take the wake lock again
+	private boolean mDestroyed;
+
+	// ===========================================================
+	// Methods from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	@SuppressWarnings("deprecation")
+	public void onCreate() {
+		super.onCreate();
+		mCreated = SystemClock.elapsedRealtime();
+		mBluetoothService = new BluetoothService(this, mRelay);
+		mCommandScheduler = new CommandScheduler(mBluetoothService);
+		mCommandScheduler.start();
+
+		// keeps the link going with the screen off, only held while
+		// connected, see onLinkState()
+		PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+		mWakeLock.setReferenceCounted(false);
+
+		Intent intent = new Intent(this, CameraActivity.class);
+		Notification notification = new Notification.Builder(this)
+			.setContentTitle(getString(R.string.app_name))
+			.setContentText(getString(R.string.service_running))
+			.setSmallIcon(R.drawable.ic_launcher)
+			.setOngoing(true)
+			.setContentIntent(PendingIntent.getActivity(this, 0, intent, 0))
+			.getNotification();
+		startForeground(NOTIFICATION_ID, notification);
+		Log.i(TAG, "started");
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		// the robot link is not restored after the process was killed,
+		// that needs the activity
+		return START_NOT_STICKY;
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return mBinder;
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		mCommandScheduler.stop();
+		mBluetoothService.quit();
+		synchronized (this) {
+			mDestroyed = true;
+			if (mWakeLock.isHeld()) mWakeLock.release();
+		}
+		stopForeground(true);
+		Log.i(TAG, "stopped: " + getReport());
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public BluetoothService getBluetoothService() {
+		return mBluetoothService;
+	}
+
+	public CommandScheduler getCommandScheduler() {
+		return mCommandScheduler;
+	}
+
+	/**
+	 * @param client gets the link messages, null when the activity goes
+	 */
+	public void setClient(Handler client) {
+		mClient = client;
+		if (client == null) return;
+		synchronized (this) {
+			mBinds++;
+		}
+	}
+
+	public synchronized String getReport() {
+		long now = SystemClock.elapsedRealtime();
+		long up = now - mCreated;
+		long connected = mConnectedTotal + (mConnectedSince > 0 ? now - mConnectedSince : 0);
+		long longest = Math.max(mLongestUp, mConnectedSince > 0 ? now - mConnectedSince : 0);
+		return "service: up " + up / 1000 + "s, link up " + (up == 0 ? 0 : connected * 100 / up) + "% ("
+			+ connected / 1000 + "s), " + mConnects + " connects, " + mDrops + " drops, longest "
+			+ longest / 1000 + "s, " + mBinds + " binds";
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	private synchronized void onLinkState(int state) {
+		long now = SystemClock.elapsedRealtime();
+		if (state == BluetoothService.STATE_CONNECTED) {
+			if (mConnectedSince == 0) {
+				mConnectedSince = now;
+				mConnects++;
+				if (!mDestroyed) mWakeLock.acquire();
+			}
+		} else if (mConnectedSince > 0) {
+			mWakeLock.release();
+			long up = now - mConnectedSince;
+			mConnectedTotal += up;
+			mLongestUp = Math.max(mLongestUp, up);
+			mConnectedSince = 0;
+			mDrops++;
+		}
+	}
+
+	// link messages arrive here on the main thread and go on to the client
+	private final Handler mRelay = new Handler() {
+		@Override
+		public void handleMessage(Message msg) {
+			if (msg.what == CameraActivity.MESSAGE_STATE_CHANGE) onLinkState(msg.arg1);
+			Handler client = mClient;
+			if (client != null) client.sendMessage(Message.obtain(msg));
+		}
+	};
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	public class LocalBinder extends Binder {
+		public TrackerService getService() {
+			return TrackerService.this;
+		}
+	}
+}
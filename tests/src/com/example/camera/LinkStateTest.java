@@ -0,0 +1,179 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Races connect attempts, resets and completed connections from many
+ * threads and checks that at most one connection survives, and that it is
+ * the published one.
+ */
+public class LinkStateTest extends TestCase {
+
+	private static final int ROUNDS = 500;
+	private static final int CONNECTORS = 8;
+	private static final int RESETTERS = 2;
+
+	private static class Attempt implements LinkState.Endpoint {
+		final AtomicInteger cancels = new AtomicInteger();
+
+		public void cancel() {
+			cancels.incrementAndGet();
+		}
+	}
+
+	private static class Connection implements LinkState.Endpoint {
+		final AtomicInteger cancels = new AtomicInteger();
+		volatile boolean published;
+
+		public void cancel() {
+			cancels.incrementAndGet();
+		}
+
+		boolean isLive() {
+			return published && cancels.get() == 0;
+		}
+	}
+
+	public void testSequence() {
+		LinkState<Attempt, Connection> link = new LinkState<Attempt, Connection>();
+		assertEquals(LinkState.NONE, link.get());
+
+		Attempt attempt = new Attempt();
+		link.connect(attempt);
+		assertEquals(LinkState.CONNECTING, link.get());
+
+		Connection connection = new Connection();
+		assertTrue(link.connected(attempt, connection));
+		assertEquals(LinkState.CONNECTED, link.get());
+		assertSame(connection, link.getConnection());
+
+		assertTrue(link.lost(connection));
+		assertFalse(link.lost(connection));
+		assertEquals(LinkState.NONE, link.get());
+		assertNull(link.getConnection());
+		assertEquals(1, connection.cancels.get());
+	}
+
+	public void testStaleAttemptLoses() {
+		LinkState<Attempt, Connection> link = new LinkState<Attempt, Connection>();
+		Attempt first = new Attempt();
+		link.connect(first);
+		Attempt second = new Attempt();
+		link.connect(second);
+		assertEquals(1, first.cancels.get());
+
+		Connection stale = new Connection();
+		assertFalse(link.connected(first, stale));
+		assertEquals(1, stale.cancels.get());
+		assertFalse(link.failed(first));
+
+		Connection current = new Connection();
+		assertTrue(link.connected(second, current));
+		assertSame(current, link.getConnection());
+	}
+
+	public void testResetDropsAttempt() {
+		LinkState<Attempt, Connection> link = new LinkState<Attempt, Connection>();
+		Attempt attempt = new Attempt();
+		link.connect(attempt);
+		assertTrue(link.reset());
+		assertEquals(1, attempt.cancels.get());
+
+		Connection connection = new Connection();
+		assertFalse(link.connected(attempt, connection));
+		assertEquals(LinkState.NONE, link.get());
+	}
+
+	public void testConcurrentConnectAndReset() throws InterruptedException {
+		Random random = new Random(42);
+		for (int round = 0; round < ROUNDS; round++) {
+			final LinkState<Attempt, Connection> link = new LinkState<Attempt, Connection>();
+			final ArrayList<Connection> connections = new ArrayList<Connection>();
+			final CountDownLatch go = new CountDownLatch(1);
+			ArrayList<Thread> threads = new ArrayList<Thread>();
+
+			for (int i = 0; i < CONNECTORS; i++) {
+				final Connection connection = new Connection();
+				connections.add(connection);
+				final boolean fail = random.nextInt(4) == 0;
+				threads.add(new Thread() {
+					public void run() {
+						await(go);
+						Attempt attempt = new Attempt();
+						link.connect(attempt);
+						Thread.yield();
+						if (fail) link.failed(attempt);
+						else if (link.connected(attempt, connection)) connection.published = true;
+					}
+				});
+			}
+			for (int i = 0; i < RESETTERS; i++) {
+				threads.add(new Thread() {
+					public void run() {
+						await(go);
+						link.reset();
+						Thread.yield();
+						link.reset();
+					}
+				});
+			}
+
+			for (Thread thread : threads) thread.start();
+			go.countDown();
+			for (Thread thread : threads) thread.join();
+
+			int live = 0;
+			Connection winner = null;
+			for (Connection connection : connections) {
+				if (connection.isLive()) {
+					live++;
+					winner = connection;
+				}
+				assertTrue("cancelled twice", connection.cancels.get() <= 1);
+			}
+			int state = link.get();
+			assertTrue("round " + round + ": " + live + " live connections", live <= 1);
+			if (state == LinkState.CONNECTED) {
+				assertEquals("round " + round, 1, live);
+				assertSame(winner, link.getConnection());
+			} else {
+				assertEquals("round " + round, 0, live);
+				assertNull(link.getConnection());
+				assertEquals("round " + round, LinkState.NONE, state);
+			}
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package com.example.camera;
+
+
+/*
+ * Copyright (C) 2013 Marcus Bauer
+ * Copyright (C) 2013 Bearstech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import junit.framework.TestCase;
+
+
+public class SteeringCommandTest extends TestCase {
+
+	public void testRoundTrip() {
+		int[] values = { -1000, -301, -1, 0, 1, 259, 1000 };
+		for (int pan : values) {
+			for (int tilt : values) {
+				for (int distance : values) {
+					SteeringCommand command = new SteeringCommand(pan, tilt, distance);
+					String line = command.encode();
+					assertTrue(line.endsWith("\n"));
+					SteeringCommand decoded = SteeringCommand.decode(line);
+					assertNotNull(line, decoded);
+					assertEquals(line, pan, decoded.pan);
+					assertEquals(line, tilt, decoded.tilt);
+					assertEquals(line, distance, decoded.distance);
+				}
+			}
+		}
+	}
+
+	public void testDeadBands() {
+		SteeringCommand inside = SteeringCommand.fromTarget(SteeringCommand.PAN_DEADBAND,
+				-SteeringCommand.TILT_DEADBAND, 0);
+		assertTrue(inside.isCentered());
+
+		SteeringCommand outside = SteeringCommand.fromTarget(-SteeringCommand.PAN_DEADBAND - 1,
+				SteeringCommand.TILT_DEADBAND + 1, 25);
+		assertFalse(outside.isCentered());
+		assertEquals("move,-301,261,25\n", outside.encode());
+	}
+
+	public void testDecodeRejects() {
+		assertNull(SteeringCommand.decode("okay,600,0"));
+		assertNull(SteeringCommand.decode("move,1,2"));
+		assertNull(SteeringCommand.decode("move,1,2,3,4"));
+		assertNull(SteeringCommand.decode("move,1,x,3"));
+		assertNotNull(SteeringCommand.decode(" move, 1, 2, 3 \r\n"));
+	}
+}